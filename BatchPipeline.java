@@ -0,0 +1,192 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+//folder mode as a three stage pipeline: reader threads load the next files while the current one is
+//being processed, and finished images are written in the background.
+//at most READ_AHEAD images are loaded ahead and WRITE_BEHIND results wait for the writer, so the
+//memory stays bounded no matter how many files the folder has
+public class BatchPipeline {
+
+    static final int READERS = 2;
+    static final int READ_AHEAD = 2;
+    static final int WRITE_BEHIND = 2;
+    // what a reader returns when the result came from the cache
+    private static final Image CACHED = new Image();
+
+    // processes every file into outDir/output_<name>; prints the compute time of each file (in s)
+    // with a cache (may be null), the readers look every file up first and skip the hits
+    // job (may be null) gets the progress per file; once it is cancelled no new file is started
+    static void run(File[] files, File outDir, FusedChain chain, int numThreads, boolean compact, ResultCache cache,
+                    Engine.Job<?> job) throws InterruptedException {
+        // JDK 17 has no virtual threads; the reader and writer threads are plain daemon threads
+        ExecutorService readers = Executors.newFixedThreadPool(READERS, BatchPipeline::daemon);
+        ExecutorService writer = Executors.newSingleThreadExecutor(BatchPipeline::daemon);
+        Semaphore writeSlots = new Semaphore(WRITE_BEHIND);
+        Deque<Future<Image>> loaded = new ArrayDeque<>();
+        Metrics.Run[] runs = new Metrics.Run[files.length];
+        String[] keys = new String[files.length];
+        int next = 0;
+
+        try {
+            while (next < files.length && loaded.size() < READ_AHEAD) {
+                loaded.add(submitRead(readers, files, outDir, runs, keys, next++, compact, cache, numThreads));
+            }
+            for (int i = 0; i < files.length; i++) {
+                if (job != null) {
+                    job.check();
+                    job.part(i, files.length);
+                }
+                File f = files[i];
+                Metrics.Run run = runs[i];
+                Metrics.Timer wait = new Metrics.Timer();
+                Future<Image> read = loaded.poll();
+                // start the next read right away, so it runs while this file is processed
+                if (next < files.length) loaded.add(submitRead(readers, files, outDir, runs, keys, next++, compact, cache, numThreads));
+                Image input;
+                try {
+                    input = read.get();
+                } catch (ExecutionException e) { // a reader failed on this file only, the others go on
+                    e.getCause().printStackTrace();
+                    System.out.println("Skipping " + f.getName());
+                    continue;
+                }
+                run.stage("wait:read", wait, 0, 0);
+                if (input == CACHED) {
+                    System.out.println("Cached " + f.getName());
+                    continue;
+                }
+                if (input.width == 0) {
+                    System.out.println("Skipping " + f.getName());
+                    continue;
+                }
+                run.pixels = (long) input.width * input.height;
+
+                long start = System.currentTimeMillis(); //time used
+                Metrics.Timer t = new Metrics.Timer();
+                Image output = compute(input, chain, numThreads, compact, job);
+                long end = System.currentTimeMillis();
+                if (output != input) BufferPool.recycle(input); // a reader can reuse it for the next file
+                if (job != null && job.cancelled) {
+                    BufferPool.recycle(output);
+                    job.check();
+                }
+                run.ops(chain.labels, chain.opNanos);
+                run.stage("compute", t, 0, 0);
+                System.out.println((double) (end - start) / 1000);
+
+                // back-pressure: wait if the writer is already WRITE_BEHIND images behind
+                wait = new Metrics.Timer();
+                writeSlots.acquire();
+                run.stage("wait:write", wait, 0, 0);
+                File outFile = new File(outDir, "output_" + f.getName());
+                String key = keys[i];
+                writer.submit(() -> {
+                    try {
+                        Metrics.Timer w = new Metrics.Timer();
+                        boolean written = write(output, outFile.getAbsolutePath(), numThreads);
+                        run.stage("encode", w, 0, outFile.length());
+                        if (written && cache != null) cache.store(key, outFile); // never a partial result
+                        run.done();
+                        BufferPool.recycle(output);
+                    } finally {
+                        writeSlots.release();
+                    }
+                });
+            }
+        } finally {
+            readers.shutdownNow();
+            writer.shutdown();
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static Future<Image> submitRead(ExecutorService readers, File[] files, File outDir, Metrics.Run[] runs,
+                                            String[] keys, int i, boolean compact, ResultCache cache,
+                                            int numThreads) {
+        String path = files[i].getAbsolutePath();
+        Metrics.Run run = new Metrics.Run(path);
+        runs[i] = run;
+        return readers.submit(() -> {
+            PpmCodec.Raw raw = null;
+            if (cache != null) {
+                Metrics.Timer t = new Metrics.Timer();
+                raw = readRaw(path);
+                keys[i] = (raw == null) ? null : cache.key(raw, numThreads);
+                boolean hit = cache.fetch(keys[i], new File(outDir, "output_" + files[i].getName()));
+                run.stage(hit ? "cache:hit" : "cache:miss", t, files[i].length(), 0);
+                if (hit) {
+                    raw.release();
+                    run.done();
+                    return CACHED;
+                }
+                if (raw == null) return new Image(); // unreadable, skipped
+            }
+            Metrics.Timer t = new Metrics.Timer();
+            Image img = read(path, raw, compact, numThreads);
+            run.stage("decode", t, files[i].length(), 0);
+            return img;
+        });
+    }
+
+    // the header and samples for the cache key; null (after the message) if the file can't be read
+    static PpmCodec.Raw readRaw(String path) {
+        try {
+            return PpmCodec.readRaw(path);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Could not open file " + path);
+            return null;
+        }
+    }
+
+    // the float conversions run on the shared pool too, next to the compute of the previous file.
+    // raw (may be null) is what was read for the cache key: decoded from there, the file isn't read again
+    static Image read(String path, PpmCodec.Raw raw, boolean compact, int numThreads) {
+        if (raw != null) {
+            try {
+                if (compact) {
+                    CompactImage img = new CompactImage();
+                    PpmCodec.decode(raw, img);
+                    return img;
+                }
+                PpmImage img = new PpmImage();
+                PpmCodec.decode(raw, img, numThreads);
+                return img;
+            } finally {
+                raw.release();
+            }
+        }
+        if (compact) {
+            CompactImage img = new CompactImage();
+            img.ppmImport(path);
+            return img;
+        }
+        PpmImage img = new PpmImage();
+        img.ppmImport(path, numThreads);
+        return img;
+    }
+
+    private static Image compute(Image input, FusedChain chain, int numThreads, boolean compact, Engine.Job<?> job) {
+        if (compact) return FixedPointConvolution.process((CompactImage) input, chain, numThreads, job);
+        return ImageProcessor.process((PpmImage) input, chain, numThreads, job);
+    }
+
+    private static boolean write(Image img, String path, int numThreads) {
+        if (img instanceof CompactImage) return ((CompactImage) img).ppmExport(path);
+        return ((PpmImage) img).ppmExport(path, numThreads);
+    }
+
+    private static Thread daemon(Runnable r) {
+        Thread t = new Thread(r);
+        t.setDaemon(true);
+        return t;
+    }
+}
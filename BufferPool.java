@@ -0,0 +1,118 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+//pixel buffers (float[], byte[], short[]) kept by type and length, so a batch of same size images
+//reuses the buffers of the previous files instead of allocating (and collecting) new ones per file.
+//get() returns a pooled array or a new one; release() hands it back once nothing reads it any more.
+//arrays are not cleared, every user overwrites the part it reads. At most MAX_BYTES are kept, more
+//released arrays are left to the GC
+class BufferPool {
+
+    static final long MAX_BYTES = Runtime.getRuntime().maxMemory() / 4;
+
+    private static final Map<Long, ArrayDeque<Object>> FREE = new HashMap<>();
+    private static long pooledBytes;
+    private static long reused, allocated;
+    // GC counters when the class was loaded, so report() shows what this run caused
+    private static final long[] GC_START = gcCounts();
+
+    static float[] floats(int n) {
+        Object a = take('F', n);
+        return (a != null) ? (float[]) a : new float[n];
+    }
+
+    static byte[] bytes(int n) {
+        Object a = take('B', n);
+        return (a != null) ? (byte[]) a : new byte[n];
+    }
+
+    static short[] shorts(int n) {
+        Object a = take('S', n);
+        return (a != null) ? (short[]) a : new short[n];
+    }
+
+    // scratch arrays whose length isn't used: n is rounded up (at most 1/8 more) so buffers of
+    // slightly different sizes (row bands of a changing partition, messages) are reused too
+    static float[] floatsAtLeast(int n) {
+        return floats(sizeClass(n));
+    }
+
+    static byte[] bytesAtLeast(int n) {
+        return bytes(sizeClass(n));
+    }
+
+    static int sizeClass(int n) {
+        if (n <= 64) return 64;
+        int step = Integer.highestOneBit(n - 1) >> 3;
+        long up = ((long) n + step - 1) / step * step;
+        return (int) Math.min(Integer.MAX_VALUE - 8, up);
+    }
+
+    // the pixel array of an image back to the pool (the image must not be used any more)
+    static void recycle(Image img) {
+        if (img == null) return;
+        release(img.data);
+        img.data = null;
+        if (img instanceof CompactImage) {
+            CompactImage c = (CompactImage) img;
+            release(c.bytes);
+            release(c.shorts);
+            c.bytes = null;
+            c.shorts = null;
+        }
+    }
+
+    // a float[], byte[] or short[] back to the pool (null is ignored)
+    static void release(Object array) {
+        if (array instanceof float[]) give('F', ((float[]) array).length, 4, array);
+        else if (array instanceof byte[]) give('B', ((byte[]) array).length, 1, array);
+        else if (array instanceof short[]) give('S', ((short[]) array).length, 2, array);
+    }
+
+    private static synchronized Object take(char type, int n) {
+        ArrayDeque<Object> free = FREE.get(key(type, n));
+        Object a = (free == null) ? null : free.poll();
+        if (a == null) {
+            allocated++;
+            return null;
+        }
+        reused++;
+        pooledBytes -= (long) n * bytesPer(type);
+        return a;
+    }
+
+    private static synchronized void give(char type, int n, int bytesPer, Object array) {
+        long bytes = (long) n * bytesPer;
+        if (n == 0 || pooledBytes + bytes > MAX_BYTES) return;
+        FREE.computeIfAbsent(key(type, n), k -> new ArrayDeque<>()).push(array);
+        pooledBytes += bytes;
+    }
+
+    private static long key(char type, int n) {
+        return ((long) type << 32) | n;
+    }
+
+    private static int bytesPer(char type) {
+        return (type == 'F') ? 4 : (type == 'S') ? 2 : 1;
+    }
+
+    // "GC: <n> collections, <ms> ms; buffers: <reused> reused, <allocated> allocated" since the start
+    static synchronized String report() {
+        long[] now = gcCounts();
+        return String.format("GC: %d collections, %d ms; buffers: %d reused, %d allocated",
+                now[0] - GC_START[0], now[1] - GC_START[1], reused, allocated);
+    }
+
+    // collections and collection time (ms) of all collectors
+    private static long[] gcCounts() {
+        long count = 0, millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return new long[]{count, millis};
+    }
+}
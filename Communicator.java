@@ -0,0 +1,47 @@
+import java.io.IOException;
+
+//the calls distributed mode makes between ranks, so it can run on MPJ Express (MpjCommunicator)
+//or on threads of one JVM (LocalCommunicator)
+//buffers are primitive arrays (float[], int[], double[], byte[], short[], long[]) with an offset and a
+//count in elements, like in MPJ; both sides of a message must use the same array type
+interface Communicator extends AutoCloseable {
+
+    // recv() from any rank
+    int ANY_SOURCE = -1;
+
+    enum Op { MAX, MIN, SUM }
+
+    // what every rank runs
+    interface Task {
+        void run(Communicator comm) throws Exception;
+    }
+
+    int rank();
+
+    int size();
+
+    void bcast(Object buf, int off, int count, int root) throws Exception;
+
+    // rank p gets counts[p] elements of send starting at displs[p] (send is only read on root)
+    void scatterv(Object send, int[] counts, int[] displs, Object recv, int recvOff, int root) throws Exception;
+
+    // the opposite of scatterv (recv is only written on root)
+    void gatherv(Object send, int sendOff, int count, Object recv, int[] counts, int[] displs, int root)
+            throws Exception;
+
+    double allreduce(double value, Op op) throws Exception;
+
+    void send(Object buf, int off, int count, int dest, int tag) throws Exception;
+
+    // returns the rank the message came from (source can be ANY_SOURCE)
+    int recv(Object buf, int off, int count, int source, int tag) throws Exception;
+
+    void sendrecv(Object sendBuf, int sendOff, int sendCount, int dest, int sendTag,
+                  Object recvBuf, int recvOff, int recvCount, int source, int recvTag) throws Exception;
+
+    void barrier() throws Exception;
+
+    // IOException, not Exception: close() may not throw InterruptedException (try-with-resources)
+    @Override
+    void close() throws IOException;
+}
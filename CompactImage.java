@@ -0,0 +1,72 @@
+import java.io.*;
+
+//image that keeps the samples the way they are stored in the file: one byte per sample
+//(depth <= 255) or one short per sample (depth > 255), instead of one float.
+//that is 4x (or 2x) less memory than PpmImage; it is processed with FixedPointConvolution
+class CompactImage extends Image {
+    // exactly one of the two arrays is used, depending on the depth
+    byte[] bytes;
+    short[] shorts;
+
+    CompactImage() {
+        this.width = 0;
+        this.height = 0;
+        this.channels = 0;
+        this.depth = 0;
+    }
+
+    CompactImage(int width, int height, int channels, int depth) {
+        this.width = width;
+        this.height = height;
+        this.channels = channels;
+        this.depth = depth;
+        allocate();
+    }
+
+    // the samples come from BufferPool (the contents are undefined)
+    private void allocate() {
+        int n = this.width * this.height * this.channels;
+        if (this.depth > 255) {
+            this.shorts = BufferPool.shorts(n);
+        } else {
+            this.bytes = BufferPool.bytes(n);
+        }
+    }
+
+    // bytes per sample in the file (and in memory)
+    int bytesPerSample() {
+        return (this.depth > 255) ? 2 : 1;
+    }
+
+    int get(int i) {
+        return (bytes != null) ? bytes[i] & 0xFF : shorts[i] & 0xFFFF;
+    }
+
+    void set(int i, int v) {
+        if (bytes != null) bytes[i] = (byte) v;
+        else shorts[i] = (short) v;
+    }
+
+    // reads a P2/P3/P5/P6 file (through PpmCodec); binary 16-bit samples are big-endian, as Netpbm defines them
+    public void ppmImport(String filename) {
+        try {
+            PpmCodec.read(filename, this);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Could not open file " + filename);
+            unread();
+        }
+    }
+
+    // false if the file could not be (completely) written
+    public boolean ppmExport(String filename) {
+        try {
+            PpmCodec.write(filename, this);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Could not open file" + filename);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+//kernel layer: applies a Kernel to a rectangular region of an image
+//the region is rows [r0,r1) and columns [c0,c1), pixels outside the image are clamped to the edge
+//separable kernels run as a horizontal pass followed by a vertical pass (2k instead of k*k per sample),
+//big kernels that are not separable go through FftConvolution when that is cheaper
+public class Convolution {
+
+    // a part of an image kept in a float array: top-left pixel (r0,c0) and row length w (in pixels),
+    // channels are interleaved like in Image.data. The full image is Window(data, 0, 0, width)
+    static final class Window {
+        final float[] data;
+        final int r0, c0, w;
+
+        Window(float[] data, int r0, int c0, int w) {
+            this.data = data;
+            this.r0 = r0;
+            this.c0 = c0;
+            this.w = w;
+        }
+    }
+
+    // per-thread scratch arrays (slot 0: separable band, slots 1-2: tile ping-pong buffers,
+    // slot 3: flipped 5x5 weights)
+    private static final ThreadLocal<float[][]> SCRATCH = ThreadLocal.withInitial(() -> new float[4][]);
+
+    static float[] scratch(int slot, int length) {
+        float[][] s = SCRATCH.get();
+        if (s[slot] == null || s[slot].length < length) s[slot] = new float[length];
+        return s[slot];
+    }
+
+    // true if the JVM was started with --add-modules jdk.incubator.vector, so VectorConvolution can be used
+    static boolean vectorAvailable() {
+        return ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+    }
+
+    // writes the convolved region into out (same layout as in.data)
+    static void apply(Image in, float[] out, Kernel k, int r0, int r1, int c0, int c1) {
+        apply(new Window(in.data, 0, 0, in.width), new Window(out, 0, 0, in.width),
+                in.width, in.height, in.channels, k, r0, r1, c0, c1);
+    }
+
+    // src must hold every (clamped) pixel the region reads, dst must hold the region;
+    // W,H,C are the size of the whole image (used for clamping)
+    static void apply(Window src, Window dst, int W, int H, int C, Kernel k, int r0, int r1, int c0, int c1) {
+        if (r1 <= r0 || c1 <= c0) return;
+        if (k.isSeparable() && k.size > 1) {
+            separable(src, dst, W, H, C, k, r0, r1, c0, c1);
+        } else if (FftConvolution.cheaper(k, r1 - r0, c1 - c0)) {
+            FftConvolution.apply(src, dst, W, H, C, k, r0, r1, c0, c1);
+        } else {
+            direct(src, dst, W, H, C, k, r0, r1, c0, c1);
+        }
+    }
+
+    // full kSize x kSize multiply-add per sample. 3x3 and 5x5 kernels run the pixels that are at least
+    // the kernel radius away from the border through unrolled loops without any clamping, the border
+    // strips go through the generic loop. Every sum is built in the same order, so results are identical
+    static void direct(Window src, Window dst, int W, int H, int C, Kernel k, int r0, int r1, int c0, int c1) {
+        int half = k.size / 2;
+        int ir0 = Math.max(r0, half), ir1 = Math.min(r1, H - half);
+        int ic0 = Math.max(c0, half), ic1 = Math.min(c1, W - half);
+        if ((k.size == 3 || k.size == 5) && ir0 < ir1 && ic0 < ic1) {
+            directClamped(src, dst, W, H, C, k, r0, ir0, c0, c1);    // top
+            directClamped(src, dst, W, H, C, k, ir1, r1, c0, c1);    // bottom
+            directClamped(src, dst, W, H, C, k, ir0, ir1, c0, ic0);  // left
+            directClamped(src, dst, W, H, C, k, ir0, ir1, ic1, c1);  // right
+            if (k.size == 3) {
+                interior3x3(src, dst, C, k.values, ir0, ir1, ic0, ic1);
+            } else {
+                interior5x5(src, dst, C, k.values, ir0, ir1, ic0, ic1);
+            }
+            return;
+        }
+        directClamped(src, dst, W, H, C, k, r0, r1, c0, c1);
+    }
+
+    // generic loop, clamps every tap to the image (same order as the original Worker loop)
+    static void directClamped(Window src, Window dst, int W, int H, int C, Kernel k, int r0, int r1, int c0, int c1) {
+        int kSize = k.size, half = kSize / 2;
+        float[] ker = k.values;
+        float[] s = src.data, d = dst.data;
+        for (int i = r0; i < r1; i++) {
+            for (int j = c0; j < c1; j++) {
+                for (int c = 0; c < C; c++) {
+                    float sum = 0f;
+                    for (int ii = 0; ii < kSize; ii++) {
+                        int ik = i - half + ii;
+                        if (ik < 0) ik = 0; else if (ik >= H) ik = H - 1;
+                        int sRow = (ik - src.r0) * src.w - src.c0;
+                        for (int jj = 0; jj < kSize; jj++) {
+                            int jk = j - half + jj;
+                            if (jk < 0) jk = 0; else if (jk >= W) jk = W - 1;
+                            sum += s[(sRow + jk) * C + c] * ker[(kSize - 1 - ii) * kSize + (kSize - 1 - jj)];
+                        }
+                    }
+                    d[((i - dst.r0) * dst.w + j - dst.c0) * C + c] = sum;
+                }
+            }
+        }
+    }
+
+    // 3x3 without clamping; the weights are flipped once into locals and all channels of a pixel
+    // are done together, reading three rows of the source
+    static void interior3x3(Window src, Window dst, int C, float[] ker, int r0, int r1, int c0, int c1) {
+        float w00 = ker[8], w01 = ker[7], w02 = ker[6];
+        float w10 = ker[5], w11 = ker[4], w12 = ker[3];
+        float w20 = ker[2], w21 = ker[1], w22 = ker[0];
+        float[] s = src.data, d = dst.data;
+        int rs = src.w * C, C2 = 2 * C;
+        for (int i = r0; i < r1; i++) {
+            int sRow = ((i - src.r0) * src.w - src.c0) * C;
+            int dRow = ((i - dst.r0) * dst.w - dst.c0) * C;
+            for (int j = c0; j < c1; j++) {
+                int m = sRow + (j - 1) * C;
+                int t = m - rs, b = m + rs;
+                int o = dRow + j * C;
+                for (int c = 0; c < C; c++) {
+                    float sum = s[t + c] * w00;
+                    sum += s[t + C + c] * w01;
+                    sum += s[t + C2 + c] * w02;
+                    sum += s[m + c] * w10;
+                    sum += s[m + C + c] * w11;
+                    sum += s[m + C2 + c] * w12;
+                    sum += s[b + c] * w20;
+                    sum += s[b + C + c] * w21;
+                    sum += s[b + C2 + c] * w22;
+                    d[o + c] = sum;
+                }
+            }
+        }
+    }
+
+    // 5x5 without clamping; each kernel row is unrolled, rows are walked top to bottom
+    static void interior5x5(Window src, Window dst, int C, float[] ker, int r0, int r1, int c0, int c1) {
+        // flipped weights, wf[ii * 5 + jj] = ker[(4 - ii) * 5 + (4 - jj)]
+        float[] wf = scratch(3, 25);
+        for (int q = 0; q < 25; q++) wf[q] = ker[24 - q];
+        float[] s = src.data, d = dst.data;
+        int rs = src.w * C, C2 = 2 * C, C3 = 3 * C, C4 = 4 * C;
+        for (int i = r0; i < r1; i++) {
+            int sRow = ((i - src.r0) * src.w - src.c0) * C;
+            int dRow = ((i - dst.r0) * dst.w - dst.c0) * C;
+            for (int j = c0; j < c1; j++) {
+                int top = sRow + (j - 2) * C - 2 * rs;
+                int o = dRow + j * C;
+                for (int c = 0; c < C; c++) {
+                    int p = top + c;
+                    float sum = 0f;
+                    for (int ii = 0, q = 0; ii < 5; ii++, q += 5, p += rs) {
+                        sum += s[p] * wf[q];
+                        sum += s[p + C] * wf[q + 1];
+                        sum += s[p + C2] * wf[q + 2];
+                        sum += s[p + C3] * wf[q + 3];
+                        sum += s[p + C4] * wf[q + 4];
+                    }
+                    d[o + c] = sum;
+                }
+            }
+        }
+    }
+
+    // horizontal pass into a temporary band (region rows plus the kernel radius above/below),
+    // then a vertical pass from the band into dst
+    static void separable(Window src, Window dst, int W, int H, int C, Kernel k, int r0, int r1, int c0, int c1) {
+        int kSize = k.size, half = kSize / 2;
+        float[] row = k.row, col = k.col;
+        float[] s = src.data, d = dst.data;
+
+        // rows of the input the vertical pass will need (already clamped to the image)
+        int b0 = Math.max(0, r0 - half);
+        int b1 = Math.min(H, r1 + half);
+        int bw = c1 - c0;
+        float[] band = scratch(0, (b1 - b0) * bw * C);
+
+        for (int i = b0; i < b1; i++) {
+            int bRow = (i - b0) * bw - c0;
+            int sRow = (i - src.r0) * src.w - src.c0;
+            for (int j = c0; j < c1; j++) {
+                for (int c = 0; c < C; c++) {
+                    float sum = 0f;
+                    for (int jj = 0; jj < kSize; jj++) {
+                        int jk = j - half + jj;
+                        if (jk < 0) jk = 0; else if (jk >= W) jk = W - 1;
+                        sum += s[(sRow + jk) * C + c] * row[kSize - 1 - jj];
+                    }
+                    band[(bRow + j) * C + c] = sum;
+                }
+            }
+        }
+
+        for (int i = r0; i < r1; i++) {
+            int dRow = (i - dst.r0) * dst.w - dst.c0;
+            for (int j = c0; j < c1; j++) {
+                for (int c = 0; c < C; c++) {
+                    float sum = 0f;
+                    for (int ii = 0; ii < kSize; ii++) {
+                        int ik = i - half + ii;
+                        if (ik < 0) ik = 0; else if (ik >= H) ik = H - 1;
+                        sum += band[((ik - b0) * bw + j - c0) * C + c] * col[kSize - 1 - ii];
+                    }
+                    d[(dRow + j) * C + c] = sum;
+                }
+            }
+        }
+    }
+
+    // horizontal mirror of rows [r0,r1)
+    static void mirror(Image in, float[] out, int r0, int r1) {
+        int W = in.width, C = in.channels;
+        for (int i = r0; i < r1; i++) {
+            for (int j = 0; j < W; j++) {
+                int sIdx = (i * W + j) * C;
+                int dIdx = (i * W + (W - 1 - j)) * C;
+                for (int c = 0; c < C; c++) out[dIdx + c] = in.data[sIdx + c];
+            }
+        }
+    }
+}
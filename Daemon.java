@@ -0,0 +1,295 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+
+//resident mode: one warm JVM with one Engine that takes jobs over HTTP on localhost, so a stream of
+//small requests doesn't pay the JVM start, class loading and JIT warm-up every time (see DaemonClient)
+//  POST /jobs   in=<file or folder>&out=<file or folder>&ops=<ops>[&priority=<n>], as the query or a
+//               form body; the answer comes when the job is done
+//  GET /status  jobs, reserved memory, buffers and cache
+//  POST /stop   finishes the running jobs and exits (waiting jobs are answered 503)
+//up to --jobs jobs run at once on the engine's one pool, higher priorities first.
+//admission control: before a job is submitted it reserves what it will hold in memory, from the
+//header: the float input and result (width*height*channels*4 bytes each), with --compact the input
+//and two ping-pong buffers of the file's samples, with --stream only the rolling windows of the ops
+//(see StreamingProcessor.memory); for a folder the largest file times the images BatchPipeline
+//keeps in flight (unreadable files are left out, the pipeline skips them). A job waits while the reservations would go
+//over --memory, and one that could never fit is refused, so big images queue instead of running
+//the JVM out of heap. Waiting jobs are admitted in the engine's order (higher priority first, then
+//first come), and a later job doesn't pass the first one even if it would fit, so a big job can't
+//be starved by a stream of small ones
+class Daemon {
+
+    static final int DEFAULT_PORT = 8765;
+
+    final Engine engine;
+    final long budget; // bytes the running jobs may reserve
+    private long reserved;
+    // jobs waiting for memory, the head is admitted next
+    private final PriorityQueue<Ticket> waiting = new PriorityQueue<>();
+    private long tickets;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    // a job's place in the admission order
+    private static final class Ticket implements Comparable<Ticket> {
+        final int priority;
+        final long seq;
+
+        Ticket(int priority, long seq) {
+            this.priority = priority;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Ticket o) {
+            if (priority != o.priority) return Integer.compare(o.priority, priority);
+            return Long.compare(seq, o.seq);
+        }
+    }
+
+    Daemon(Engine engine, long budget) {
+        this.engine = engine;
+        this.budget = budget;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Map<String, String> options = new HashMap<>();
+        for (String a : args) {
+            if (!a.startsWith("--")) {
+                System.out.println("Usage: java Daemon [--port=<n>] [--threads=<mode or n>] [--jobs=<n>] [--memory=<MB>] [--compact] [--stream] [--vector] [--fold] [--metrics=<file>] [--jmx] [--cache=<dir>] [--cache-size=<MB>] [--cache-copy]");
+                return;
+            }
+            int eq = a.indexOf('=');
+            options.put((eq < 0) ? a.substring(2) : a.substring(2, eq), (eq < 0) ? "" : a.substring(eq + 1));
+        }
+        int port = Integer.parseInt(options.getOrDefault("port", "" + DEFAULT_PORT));
+        int threads = ImageProcessor.threadsFor(options.getOrDefault("threads", "auto"));
+        int jobs = Integer.parseInt(options.getOrDefault("jobs", "4")); // small jobs are mostly reading and writing
+        long memory = options.containsKey("memory") ? Long.parseLong(options.get("memory")) << 20
+                : Runtime.getRuntime().maxMemory() / 2; // BufferPool may keep up to another quarter
+        String metricsPath = options.get("metrics");
+
+        try {
+            Metrics.open(metricsPath, -1);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Could not open file " + metricsPath);
+        }
+        if (options.containsKey("jmx")) Metrics.registerMBean();
+
+        Engine engine = new Engine(threads, jobs);
+        engine.compact = options.containsKey("compact");
+        engine.stream = options.containsKey("stream");
+        engine.vector = options.containsKey("vector") && Convolution.vectorAvailable();
+        if (engine.vector && engine.compact) {
+            System.out.println("Compact mode has no SIMD kernels, using the fixed-point kernels");
+            engine.vector = false;
+        }
+        engine.fold = options.containsKey("fold");
+        engine.measure = Metrics.enabled() || options.containsKey("jmx");
+        engine.cacheDir = options.get("cache");
+        if (options.containsKey("cache-size")) engine.cacheBytes = Long.parseLong(options.get("cache-size")) << 20;
+        engine.cacheLink = !options.containsKey("cache-copy");
+
+        Daemon daemon = new Daemon(engine, memory);
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        // one thread per connection: a request holds its thread while it waits for memory and for its job
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/jobs", daemon::job);
+        server.createContext("/status", daemon::status);
+        server.createContext("/stop", daemon::stop);
+        server.start();
+        System.out.println("Listening on " + server.getAddress() + ", " + threads + " threads, " + jobs + " jobs, "
+                + (memory >> 20) + " MB for images");
+
+        daemon.stopped.await();
+        engine.close(); // waits for the running jobs, their clients still get the answer
+        server.stop(1);
+        Metrics.close();
+        System.out.println(BufferPool.report());
+        System.exit(0);
+    }
+
+    private void job(HttpExchange ex) throws IOException {
+        if (!"POST".equals(ex.getRequestMethod())) {
+            reply(ex, 405, "Use POST");
+            return;
+        }
+        Map<String, String> p = params(ex);
+        String in = p.get("in"), out = p.get("out"), ops = p.get("ops");
+        if (in == null || out == null || ops == null) {
+            reply(ex, 400, "in, out and ops are needed");
+            return;
+        }
+        int priority;
+        try {
+            priority = Integer.parseInt(p.getOrDefault("priority", "0"));
+        } catch (NumberFormatException e) {
+            reply(ex, 400, "Bad priority " + p.get("priority"));
+            return;
+        }
+        File inFile = new File(in), outFile = new File(out);
+        long need;
+        try {
+            FusedChain chain = engine.chain(ops);
+            need = inFile.isDirectory() ? folderEstimate(inFile, chain) : estimate(inFile, chain);
+        } catch (IOException e) {
+            reply(ex, 400, "Could not open file " + in + ": " + e.getMessage());
+            return;
+        } catch (IllegalArgumentException e) { // e.g. a kernel file that isn't one
+            reply(ex, 400, "Bad ops " + ops + ": " + e.getMessage());
+            return;
+        }
+        if (need > budget) {
+            reply(ex, 413, "Needs " + (need >> 20) + " MB, the daemon has " + (budget >> 20) + " MB (--memory)");
+            return;
+        }
+
+        try {
+            admit(need, priority);
+        } catch (InterruptedException e) {
+            reply(ex, 503, "Stopping");
+            return;
+        }
+        long t0 = System.nanoTime();
+        try {
+            Engine.Job<File> job;
+            if (inFile.isDirectory()) {
+                outFile.mkdirs();
+                job = engine.submitFolder(inFile, outFile, ops, priority, null);
+            } else {
+                if (outFile.getAbsoluteFile().getParentFile() != null) outFile.getAbsoluteFile().getParentFile().mkdirs();
+                job = engine.submit(inFile.getPath(), outFile, ops, priority, null);
+            }
+            File result = job.join();
+            reply(ex, 200, "Done " + result.getAbsolutePath() + " in " + (System.nanoTime() - t0) / 1000000 + " ms");
+        } catch (CompletionException e) {
+            reply(ex, 500, "Failed: " + e.getCause());
+        } catch (IllegalStateException e) { // closed, or cancelled while queued at /stop
+            reply(ex, 503, "Stopping");
+        } finally {
+            release(need);
+        }
+    }
+
+    private void status(HttpExchange ex) throws IOException {
+        String cache = engine.cacheReport();
+        long reservedNow;
+        int waitingNow;
+        synchronized (this) {
+            reservedNow = reserved;
+            waitingNow = waiting.size();
+        }
+        reply(ex, 200, "Jobs: " + engine.running() + " running, " + engine.queued() + " queued, " + waitingNow
+                + " waiting for memory\nMemory: " + (reservedNow >> 20) + " of " + (budget >> 20) + " MB reserved\n"
+                + BufferPool.report() + ((cache == null) ? "" : "\n" + cache));
+    }
+
+    private void stop(HttpExchange ex) throws IOException {
+        if (!"POST".equals(ex.getRequestMethod())) {
+            reply(ex, 405, "Use POST");
+            return;
+        }
+        reply(ex, 200, "Stopping");
+        stopped.countDown();
+    }
+
+    // waits until the job is the first in line and bytes fit next to the other reservations
+    private synchronized void admit(long bytes, int priority) throws InterruptedException {
+        Ticket t = new Ticket(priority, ++tickets);
+        waiting.add(t);
+        try {
+            while (waiting.peek() != t || reserved + bytes > budget) wait();
+        } finally {
+            waiting.remove(t);
+            notifyAll(); // the next in line may fit as well
+        }
+        reserved += bytes;
+    }
+
+    private synchronized void release(long bytes) {
+        reserved -= bytes;
+        notifyAll();
+    }
+
+    // what the job of one file holds: the input and the result (compact: the input and two ping-pong
+    // buffers), or in stream mode only the windows
+    long estimate(File f, FusedChain chain) throws IOException {
+        PpmCodec.Header h = header(f);
+        if (engine.stream) return StreamingProcessor.memory(h, chain);
+        return imageBytes(h) * (engine.compact ? 3 : 2);
+    }
+
+    // the largest file, as often as BatchPipeline has images in flight (read ahead, the one being
+    // processed and its result or results, written behind); stream mode does one file at a time
+    long folderEstimate(File dir, FusedChain chain) throws IOException {
+        File[] files = dir.listFiles((d, name) -> PpmCodec.isImageFile(name));
+        if (files == null) throw new IOException("Could not list " + dir);
+        long largest = 0;
+        for (File f : files) {
+            try {
+                largest = Math.max(largest, engine.stream ? estimate(f, chain) : imageBytes(header(f)));
+            } catch (IOException e) {
+                // not readable: the job skips it, so it needs nothing
+            }
+        }
+        if (engine.stream) return largest;
+        return largest * (BatchPipeline.READ_AHEAD + (engine.compact ? 3 : 2) + BatchPipeline.WRITE_BEHIND);
+    }
+
+    // one image as the engine holds it: floats, or the file's samples in compact mode
+    private long imageBytes(PpmCodec.Header h) {
+        return (long) h.width * h.height * h.channels * (engine.compact ? h.bytesPerSample() : 4);
+    }
+
+    private static PpmCodec.Header header(File f) throws IOException {
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            return PpmCodec.readHeader(ch);
+        }
+    }
+
+    // the query string and a form body, URL-decoded
+    private static Map<String, String> params(HttpExchange ex) throws IOException {
+        Map<String, String> p = new HashMap<>();
+        String query = ex.getRequestURI().getRawQuery();
+        String body;
+        try (InputStream is = ex.getRequestBody()) {
+            body = new String(is.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        for (String part : new String[]{query, body}) {
+            if (part == null || part.isEmpty()) continue;
+            for (String pair : part.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq < 0) continue;
+                p.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return p;
+    }
+
+    private static void reply(HttpExchange ex, int code, String text) throws IOException {
+        byte[] b = (text + "\n").getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        ex.sendResponseHeaders(code, b.length);
+        try (OutputStream os = ex.getResponseBody()) {
+            os.write(b);
+        }
+    }
+}
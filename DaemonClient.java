@@ -0,0 +1,81 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+//sends one job to a running Daemon and prints its answer; exits with 0 when the job is done
+//  java DaemonClient <input file/folder> <output file/folder> <ops> [--priority=<n>] [--port=<n>]
+//  java DaemonClient --status | --stop [--port=<n>]
+//paths are sent as absolute paths, the daemon may run in another directory. For a single file an
+//existing output folder gets output_<name> in it, like the folders of ImageProcessor
+public class DaemonClient {
+
+    public static void main(String[] args) {
+        int port = Daemon.DEFAULT_PORT;
+        String priority = "0", command = null;
+        List<String> positional = new ArrayList<>();
+        for (String a : args) {
+            if (a.startsWith("--port=")) port = Integer.parseInt(a.substring("--port=".length()));
+            else if (a.startsWith("--priority=")) priority = a.substring("--priority=".length());
+            else if (a.equals("--status") || a.equals("--stop")) command = a.substring(2);
+            else positional.add(a);
+        }
+        if (command == null && positional.size() < 3) {
+            System.out.println("Usage: java DaemonClient <input file/folder> <output file/folder> <ops> [--priority=<n>] [--port=<n>]");
+            System.out.println("       java DaemonClient --status | --stop [--port=<n>]");
+            System.exit(2);
+        }
+
+        int code;
+        try {
+            if ("status".equals(command)) {
+                code = send(port, "GET", "/status", null);
+            } else if ("stop".equals(command)) {
+                code = send(port, "POST", "/stop", "");
+            } else {
+                File in = new File(positional.get(0)).getAbsoluteFile();
+                File out = new File(positional.get(1)).getAbsoluteFile();
+                if (in.isFile() && out.isDirectory()) out = new File(out, "output_" + in.getName());
+                code = send(port, "POST", "/jobs", "in=" + encode(in.getPath()) + "&out=" + encode(out.getPath())
+                        + "&ops=" + encode(positional.get(2)) + "&priority=" + encode(priority));
+            }
+        } catch (ConnectException e) {
+            System.out.println("No daemon on port " + port + " (start it with java Daemon)");
+            code = -1;
+        } catch (IOException e) {
+            e.printStackTrace();
+            code = -1;
+        }
+        System.exit((code == 200) ? 0 : 1);
+    }
+
+    // prints the answer, returns the HTTP status
+    private static int send(int port, String method, String path, String body) throws IOException {
+        HttpURLConnection c = (HttpURLConnection) new URL("http://127.0.0.1:" + port + path).openConnection();
+        c.setRequestMethod(method);
+        c.setReadTimeout(0); // a job answers when it is done
+        if (body != null) {
+            c.setDoOutput(true);
+            c.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            try (OutputStream os = c.getOutputStream()) {
+                os.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int code = c.getResponseCode();
+        try (InputStream is = (code < 400) ? c.getInputStream() : c.getErrorStream()) {
+            if (is != null) System.out.print(new String(is.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        return code;
+    }
+
+    private static String encode(String s) {
+        return URLEncoder.encode(s, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,381 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleConsumer;
+
+//the processing engine, for embedding in a longer running program: ImageProcessor (CLI), GuiApp and
+//Daemon are clients of it.
+//submit() queues a job (an image in memory, a file or a folder, and an op string) and returns the
+//job, which is a CompletableFuture of the result. Jobs with a higher priority start first (equal
+//priorities in submit order); at most maxJobs run at a time, on dispatcher threads that stay alive,
+//and their tiles share the one ForkJoin pool (Worker) and BufferPool. Op strings are planned once
+//and the planned chains are kept, so a repeated chain costs no setup.
+//progress (0..1) is reported per tile (per file for folders) to the callback given to submit, on
+//the thread that finished the tile. cancel() stops a job at the next tile (between files for
+//folders, whose threads are interrupted as well)
+class Engine implements AutoCloseable {
+
+    // settings, read when a job starts (like the CLI options)
+    int threads;               // pool parallelism of every job
+    boolean compact;           // 8/16-bit images with fixed-point kernels (files only)
+    boolean stream;            // row by row from the file to the file (files only)
+    boolean vector;            // SIMD kernels (if Convolution.vectorAvailable())
+    boolean fold;              // see OpPlanner (changes the border, so off by default)
+    boolean measure;           // op times for Metrics
+    String cacheDir;           // see ResultCache (files and folders only), null = no cache
+    long cacheBytes = ResultCache.DEFAULT_MAX_BYTES;
+    boolean cacheLink = true;
+
+    private final PriorityBlockingQueue<Job<?>> queue = new PriorityBlockingQueue<>();
+    private final Thread[] dispatchers;
+    private final Map<String, OpPlanner.Plan> plans = new ConcurrentHashMap<>();
+    private final Map<String, FusedChain> chains = new ConcurrentHashMap<>();
+    private final Map<String, ResultCache> caches = new ConcurrentHashMap<>();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicInteger running = new AtomicInteger();
+    private volatile boolean closed;
+
+    // what a job does on its dispatcher thread
+    interface Body<T> {
+        T run(Job<T> job) throws Exception;
+    }
+
+    // a queued or running job; cancel(true) stops it at the next tile. A queued job is cancelled at
+    // once, a running one only when it has stopped (and deleted its unfinished output), so whoever
+    // waits on it never sees a job that is still writing
+    static final class Job<T> extends CompletableFuture<T> implements Comparable<Job<?>> {
+        final int priority;
+        final long seq;
+        final Body<T> body;
+        final DoubleConsumer progress; // may be null
+        volatile boolean cancelled;
+        private volatile Thread runner;
+        private final AtomicInteger tiles = new AtomicInteger();
+        private volatile double base, span = 1; // the part of the job the tiles count towards
+
+        Job(int priority, long seq, Body<T> body, DoubleConsumer progress) {
+            this.priority = priority;
+            this.seq = seq;
+            this.body = body;
+            this.progress = progress;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (this) {
+                if (isDone()) return false;
+                cancelled = true;
+                if (runner != null) { // running: Engine.run completes it once the body has returned
+                    if (mayInterruptIfRunning) runner.interrupt();
+                    return true;
+                }
+            }
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+        // completes a running job that was cancelled, with a CancellationException
+        private void finishCancelled() {
+            super.cancel(false);
+        }
+
+        // one tile of total finished
+        void tileDone(int total) {
+            int done = tiles.incrementAndGet();
+            if (progress != null) progress.accept(base + span * done / total);
+        }
+
+        // from now on the tiles are those of part i of n (file i of a folder)
+        void part(int i, int n) {
+            tiles.set(0);
+            base = (double) i / n;
+            span = 1.0 / n;
+            progress(base);
+        }
+
+        void progress(double fraction) {
+            if (progress != null) progress.accept(fraction);
+        }
+
+        // throws if the job was cancelled (checked between the stages of a job)
+        void check() {
+            if (cancelled) throw new CancellationException();
+        }
+
+        @Override
+        public int compareTo(Job<?> o) {
+            if (priority != o.priority) return Integer.compare(o.priority, priority);
+            return Long.compare(seq, o.seq);
+        }
+    }
+
+    Engine(int threads, int maxJobs) {
+        this.threads = threads;
+        this.dispatchers = new Thread[maxJobs];
+        for (int i = 0; i < maxJobs; i++) {
+            dispatchers[i] = new Thread(this::dispatch, "engine-" + i);
+            dispatchers[i].setDaemon(true);
+            dispatchers[i].start();
+        }
+    }
+
+    // the image with the ops applied (a new image from BufferPool, recycle it when done with it)
+    Job<PpmImage> submit(PpmImage image, String ops, int priority, DoubleConsumer progress) {
+        return submit(priority, progress, job -> {
+            FusedChain chain = chain(ops);
+            PpmImage out = PpmImage.pooled(image.width, image.height, image.channels, image.depth);
+            out.format = image.format;
+            Worker.runChain(image, out.data, chain, threads, job);
+            if (job.cancelled) {
+                BufferPool.recycle(out);
+                throw new CancellationException();
+            }
+            return out;
+        });
+    }
+
+    // reads inPath, applies the ops and writes outFile (which the future returns)
+    Job<File> submit(String inPath, File outFile, String ops, int priority, DoubleConsumer progress) {
+        return submit(priority, progress, job -> {
+            processFile(inPath, outFile, chain(ops), cache(ops), job);
+            job.progress(1);
+            return outFile;
+        });
+    }
+
+    // every .ppm/.pgm/.pnm of inDir into outDir/output_<name>, reading and writing overlapped (BatchPipeline)
+    Job<File> submitFolder(File inDir, File outDir, String ops, int priority, DoubleConsumer progress) {
+        return submit(priority, progress, job -> {
+            File[] files = inDir.listFiles((dir, name) -> PpmCodec.isImageFile(name));
+            if (files == null) throw new IOException("Could not list " + inDir);
+            FusedChain chain = chain(ops);
+            ResultCache cache = cache(ops);
+            if (stream) {
+                for (int i = 0; i < files.length; i++) {
+                    job.check();
+                    job.part(i, files.length);
+                    processFile(files[i].getAbsolutePath(), new File(outDir, "output_" + files[i].getName()),
+                            chain, cache, job);
+                }
+                job.progress(1);
+            } else {
+                BatchPipeline.run(files, outDir, chain, threads, compact, cache, job);
+                job.progress(1);
+            }
+            return outDir;
+        });
+    }
+
+    // the plan of an op string (planned once, then kept)
+    OpPlanner.Plan plan(String ops) {
+        boolean f = folding();
+        return plans.computeIfAbsent(f + "|" + ops, k -> OpPlanner.plan(ops.split("[,+]"), f));
+    }
+
+    // compact mode rounds and clamps to integers after every op, so a folded kernel is not the same
+    // as the two it replaces there, anywhere in the image
+    private boolean folding() {
+        return fold && !compact;
+    }
+
+    // one chain per op string and setting, shared by all the jobs that use it; measured, every call
+    // (every job) gets a copy with its own op timers, or concurrent jobs would report each other's times
+    FusedChain chain(String ops) {
+        boolean simd = vector && Convolution.vectorAvailable();
+        FusedChain c = chains.computeIfAbsent(folding() + "|" + simd + "|" + ops, k -> {
+            FusedChain p = plan(ops).chain();
+            p.vector = simd;
+            return p;
+        });
+        return measure ? c.measured() : c;
+    }
+
+    // the mode is part of the cache key: compact, stream and vector results can differ in the last bit
+    private ResultCache cache(String ops) {
+        if (cacheDir == null) return null;
+        String mode = compact ? "compact" : stream ? "stream" : (vector && Convolution.vectorAvailable()) ? "vector" : "float";
+        return caches.computeIfAbsent(cacheDir + "|" + mode + "|" + folding() + "|" + ops, k ->
+                new ResultCache(new File(cacheDir), cacheBytes, cacheLink, chain(ops), mode));
+    }
+
+    private <T> Job<T> submit(int priority, DoubleConsumer progress, Body<T> body) {
+        if (closed) throw new IllegalStateException("Engine is closed");
+        Job<T> job = new Job<>(priority, submitted.incrementAndGet(), body, progress);
+        queue.add(job);
+        return job;
+    }
+
+    private void dispatch() {
+        while (!closed) {
+            Job<?> job;
+            try {
+                job = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            run(job);
+        }
+    }
+
+    private <T> void run(Job<T> job) {
+        synchronized (job) {
+            if (job.isDone() || job.cancelled) return; // cancelled while queued
+            job.runner = Thread.currentThread();
+        }
+        running.incrementAndGet();
+        try {
+            T result = job.body.run(job);
+            if (job.cancelled) job.finishCancelled();
+            else job.complete(result);
+        } catch (Throwable t) {
+            if (job.cancelled) job.finishCancelled(); // whatever the interrupt broke on the way out
+            else job.completeExceptionally(t);
+        } finally {
+            synchronized (job) {
+                job.runner = null; // no interrupt after this
+            }
+            running.decrementAndGet();
+            Thread.interrupted(); // a cancel must not reach the next job
+        }
+    }
+
+    // reads one image, applies the ops, prints how long the processing took (in s) and saves the result
+    // (in streaming mode the image is read, processed and written row by row)
+    // (every stage is also recorded in Metrics)
+    // with a cache, an unchanged input gets its stored result and is not processed at all
+    void processFile(String inPath, File outFile, FusedChain chain, ResultCache cache, Job<?> job) {
+        Metrics.Run run = new Metrics.Run(inPath);
+        String key = null;
+        PpmCodec.Raw raw = null; // the samples read for the key, decoded on a miss instead of reading again
+        if (cache != null) {
+            Metrics.Timer t = new Metrics.Timer();
+            raw = BatchPipeline.readRaw(inPath);
+            if (raw != null) key = cache.key(raw, threads);
+            boolean hit = cache.fetch(key, outFile);
+            run.stage(hit ? "cache:hit" : "cache:miss", t, new File(inPath).length(), 0);
+            if (hit || stream) { // streaming reads the file row by row anyway
+                if (raw != null) raw.release();
+                raw = null;
+            }
+            if (hit) {
+                run.done();
+                System.out.println("Cached " + outFile.getAbsolutePath());
+                return;
+            }
+        }
+        long start, end;
+        boolean written = false; // only a complete result goes into the cache
+        if (stream) {
+            // reading and writing are part of the processing here, so they are in the time
+            start = System.currentTimeMillis();
+            try {
+                StreamingProcessor.process(inPath, outFile.getAbsolutePath(), chain, threads, run, job);
+                written = true;
+            } catch (IOException e) {
+                if (!job.cancelled) { // else it is the interrupt of the cancel
+                    e.printStackTrace();
+                    System.out.println("Could not process file " + inPath);
+                }
+            }
+            if (job.cancelled) discard(outFile);
+            end = System.currentTimeMillis();
+            run.ops(chain.labels, chain.opNanos);
+        } else {
+            Metrics.Timer t = new Metrics.Timer();
+            Image input = BatchPipeline.read(inPath, raw, compact, threads);
+            run.stage("decode", t, new File(inPath).length(), 0);
+            if (input.width == 0) { // not readable (or the read was interrupted by a cancel), nothing to write
+                BufferPool.recycle(input);
+                if (job.cancelled) throw new CancellationException();
+                System.out.println("Skipping " + inPath);
+                return;
+            }
+            run.pixels = (long) input.width * input.height;
+
+            start = System.currentTimeMillis(); //time used
+            t = new Metrics.Timer();
+            Image current;
+            if (compact) {
+                current = FixedPointConvolution.process((CompactImage) input, chain, threads, job);
+            } else {
+                // whole chain in one fused pass
+                current = PpmImage.pooled(input.width, input.height, input.channels, input.depth);
+                current.format = input.format;
+                Worker.runChain(input, current.data, chain, threads, job);
+            }
+            end = System.currentTimeMillis();
+            run.ops(chain.labels, chain.opNanos);
+            run.stage("compute", t, 0, 0);
+            if (job.cancelled) {
+                if (current != input) BufferPool.recycle(current);
+                BufferPool.recycle(input);
+                throw new CancellationException();
+            }
+
+            t = new Metrics.Timer();
+            if (compact) written = ((CompactImage) current).ppmExport(outFile.getAbsolutePath()); // save the image in a file
+            else written = ((PpmImage) current).ppmExport(outFile.getAbsolutePath(), threads);
+            run.stage("encode", t, 0, outFile.length());
+            // both buffers go back to the pool for the next file
+            if (current != input) BufferPool.recycle(current);
+            BufferPool.recycle(input);
+            if (job.cancelled) discard(outFile); // a cancel during the write interrupts it halfway
+        }
+        if (written && cache != null) cache.store(key, outFile);
+        run.done();
+        System.out.println((double) (end - start) / 1000); //print how long the process took in sc
+    }
+
+    // deletes the partial output of a cancelled job and ends it
+    private static void discard(File outFile) {
+        try {
+            Files.deleteIfExists(outFile.toPath());
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Could not delete file " + outFile);
+        }
+        throw new CancellationException();
+    }
+
+    // jobs waiting for a dispatcher, and jobs running
+    int queued() {
+        return queue.size();
+    }
+
+    int running() {
+        return running.get();
+    }
+
+    // "Cache: <hits> hits, <misses> misses" over all chains, or null without a cache
+    String cacheReport() {
+        if (caches.isEmpty()) return null;
+        long hits = 0, misses = 0;
+        for (ResultCache c : caches.values()) {
+            hits += c.hits.get();
+            misses += c.misses.get();
+        }
+        return "Cache: " + hits + " hits, " + misses + " misses";
+    }
+
+    // queued jobs are cancelled, running ones finish: returns when they are done
+    @Override
+    public void close() {
+        closed = true;
+        for (Job<?> job; (job = queue.poll()) != null; ) job.cancel(false);
+        // one empty job per dispatcher, so the idle ones wake up and see closed
+        for (int i = 0; i < dispatchers.length; i++) queue.add(new Job<>(Integer.MIN_VALUE, Long.MAX_VALUE, j -> null, null));
+        try {
+            for (Thread d : dispatchers) {
+                if (d != Thread.currentThread()) d.join(); // a job may close its own engine
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
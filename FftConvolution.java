@@ -0,0 +1,179 @@
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+//FFT based convolution (overlap-save) for big kernels
+//the output region is cut into M x M blocks; for each block an N x N piece of the input (block plus
+//the kernel radius on every side, clamped to the image like the direct code) is transformed,
+//multiplied with the kernel's spectrum and transformed back. The first k-1 rows/columns of the result
+//wrap around and are dropped, the remaining M = N - k + 1 are exact.
+//cost per sample is about (6 N^2 log2 N + 4 N^2) / M^2 instead of k^2, so on big regions it wins from
+//roughly 9x9 up; N is picked per region, small regions (e.g. fused tiles) use smaller blocks
+public class FftConvolution {
+
+    // twiddle factors and bit reversal per transform size
+    private static final Map<Integer, Object[]> TABLES = new ConcurrentHashMap<>();
+    // kernel spectrum per (kernel, block size)
+    private static final Map<Kernel, Map<Integer, double[][]>> SPECTRA =
+            Collections.synchronizedMap(new WeakHashMap<>());
+    // per-thread work arrays: block (re, im) and one row/column (re, im)
+    private static final ThreadLocal<double[][]> WORK = ThreadLocal.withInitial(() -> new double[4][0]);
+
+    // estimated multiply-adds per output sample of a rows x cols region done with blocks of n x n
+    static double cost(int n, int kSize, int rows, int cols) {
+        int m = n - kSize + 1;
+        if (m <= 0) return Double.MAX_VALUE;
+        double log = Integer.numberOfTrailingZeros(n);
+        double blocks = (double) ((rows + m - 1) / m) * ((cols + m - 1) / m);
+        return blocks * (6.0 * n * n * log + 4.0 * n * n) / ((double) rows * cols);
+    }
+
+    // the cheapest power of two block size for this kernel and region
+    static int blockSize(int kSize, int rows, int cols) {
+        int best = 0;
+        for (int n = 16; n <= 1024; n <<= 1) {
+            if (n - kSize + 1 > 0 && (best == 0 || cost(n, kSize, rows, cols) < cost(best, kSize, rows, cols))) best = n;
+        }
+        return best;
+    }
+
+    // true if the FFT path is cheaper than the direct one for this kernel and region
+    static boolean cheaper(Kernel k, int rows, int cols) {
+        if (k.size < 2 || rows <= 0 || cols <= 0) return false;
+        return cost(blockSize(k.size, rows, cols), k.size, rows, cols) < k.cost();
+    }
+
+    // same contract as Convolution.apply(Window, Window, ...)
+    static void apply(Convolution.Window src, Convolution.Window dst, int W, int H, int C, Kernel k,
+                      int r0, int r1, int c0, int c1) {
+        if (r1 <= r0 || c1 <= c0) return;
+        int kSize = k.size, h = kSize / 2;
+        int N = blockSize(kSize, r1 - r0, c1 - c0), M = N - kSize + 1;
+        double[][] spec = spectrum(k, N);
+        double[][] work = WORK.get();
+        if (work[0].length < N * N) {
+            work[0] = new double[N * N];
+            work[1] = new double[N * N];
+        }
+        if (work[2].length < N) {
+            work[2] = new double[N];
+            work[3] = new double[N];
+        }
+        double[] re = work[0], im = work[1];
+        // input rows/columns the region needs; the block is clamped to them so it stays inside src
+        int nr0 = Math.max(0, r0 - h), nr1 = Math.min(H, r1 + h) - 1;
+        int nc0 = Math.max(0, c0 - h), nc1 = Math.min(W, c1 + h) - 1;
+        double norm = 1.0 / ((double) N * N);
+
+        for (int tr = r0; tr < r1; tr += M) {
+            int rows = Math.min(M, r1 - tr);
+            for (int tc = c0; tc < c1; tc += M) {
+                int cols = Math.min(M, c1 - tc);
+                for (int c = 0; c < C; c++) {
+                    for (int a = 0; a < N; a++) {
+                        int row = Math.min(Math.max(tr - h + a, nr0), nr1);
+                        int sRow = (row - src.r0) * src.w - src.c0;
+                        for (int b = 0; b < N; b++) {
+                            int col = Math.min(Math.max(tc - h + b, nc0), nc1);
+                            re[a * N + b] = src.data[(sRow + col) * C + c];
+                            im[a * N + b] = 0;
+                        }
+                    }
+                    fft2d(re, im, N, false, work[2], work[3]);
+                    double[] sr = spec[0], si = spec[1];
+                    for (int q = 0; q < N * N; q++) {
+                        double x = re[q], y = im[q];
+                        re[q] = x * sr[q] - y * si[q];
+                        im[q] = x * si[q] + y * sr[q];
+                    }
+                    fft2d(re, im, N, true, work[2], work[3]);
+                    for (int t = 0; t < rows; t++) {
+                        int dRow = (tr + t - dst.r0) * dst.w - dst.c0;
+                        int bRow = (t + 2 * h) * N + 2 * h;
+                        for (int u = 0; u < cols; u++) {
+                            dst.data[(dRow + tc + u) * C + c] = (float) (re[bRow + u] * norm);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // spectrum of the kernel placed at the top-left corner of an N x N block
+    private static double[][] spectrum(Kernel k, int N) {
+        Map<Integer, double[][]> perSize = SPECTRA.computeIfAbsent(k, x -> new ConcurrentHashMap<>());
+        return perSize.computeIfAbsent(N, n -> {
+            double[] re = new double[n * n], im = new double[n * n];
+            for (int i = 0; i < k.size; i++)
+                for (int j = 0; j < k.size; j++)
+                    re[i * n + j] = k.values[i * k.size + j];
+            fft2d(re, im, n, false, new double[n], new double[n]);
+            return new double[][]{re, im};
+        });
+    }
+
+    // rows, then columns; the inverse is not scaled
+    static void fft2d(double[] re, double[] im, int N, boolean inverse, double[] tr, double[] ti) {
+        for (int a = 0; a < N; a++) {
+            System.arraycopy(re, a * N, tr, 0, N);
+            System.arraycopy(im, a * N, ti, 0, N);
+            fft(tr, ti, N, inverse);
+            System.arraycopy(tr, 0, re, a * N, N);
+            System.arraycopy(ti, 0, im, a * N, N);
+        }
+        for (int b = 0; b < N; b++) {
+            for (int a = 0; a < N; a++) {
+                tr[a] = re[a * N + b];
+                ti[a] = im[a * N + b];
+            }
+            fft(tr, ti, N, inverse);
+            for (int a = 0; a < N; a++) {
+                re[a * N + b] = tr[a];
+                im[a * N + b] = ti[a];
+            }
+        }
+    }
+
+    // iterative radix-2 FFT of the first n values, in place
+    static void fft(double[] re, double[] im, int n, boolean inverse) {
+        Object[] t = TABLES.computeIfAbsent(n, FftConvolution::tables);
+        int[] rev = (int[]) t[0];
+        double[] cos = (double[]) t[1], sin = (double[]) t[2];
+        for (int i = 0; i < n; i++) {
+            int j = rev[i];
+            if (j > i) {
+                double x = re[i]; re[i] = re[j]; re[j] = x;
+                x = im[i]; im[i] = im[j]; im[j] = x;
+            }
+        }
+        double sign = inverse ? 1 : -1;
+        for (int len = 2; len <= n; len <<= 1) {
+            int half = len >> 1, step = n / len;
+            for (int i = 0; i < n; i += len) {
+                for (int j = 0; j < half; j++) {
+                    double wr = cos[j * step], wi = sign * sin[j * step];
+                    int p = i + j, q = p + half;
+                    double xr = re[q] * wr - im[q] * wi;
+                    double xi = re[q] * wi + im[q] * wr;
+                    re[q] = re[p] - xr;
+                    im[q] = im[p] - xi;
+                    re[p] += xr;
+                    im[p] += xi;
+                }
+            }
+        }
+    }
+
+    private static Object[] tables(int n) {
+        int bits = Integer.numberOfTrailingZeros(n);
+        int[] rev = new int[n];
+        for (int i = 0; i < n; i++) rev[i] = Integer.reverse(i) >>> (32 - bits);
+        double[] cos = new double[n / 2], sin = new double[n / 2];
+        for (int i = 0; i < n / 2; i++) {
+            cos[i] = Math.cos(2 * Math.PI * i / n);
+            sin[i] = Math.sin(2 * Math.PI * i / n);
+        }
+        return new Object[]{rev, cos, sin};
+    }
+}
@@ -0,0 +1,175 @@
+//kernel layer for CompactImage: integer samples and fixed-point weights
+//weights are stored as round(w * 2^FRAC), products are summed in a long and the result is rounded
+//to the nearest integer and saturated to [0, depth] after every op.
+//unlike the float path, negative or too big values do not survive between the ops of a chain,
+//so precision-sensitive chains should keep using PpmImage
+public class FixedPointConvolution {
+
+    // fraction bits of the weights
+    static final int FRAC = 14;
+    // extra fraction bits kept between the two passes of a separable kernel
+    static final int BAND_FRAC = 8;
+
+    // per-thread band of the separable passes, so a row band doesn't allocate it every time
+    private static final ThreadLocal<int[][]> BAND = ThreadLocal.withInitial(() -> new int[1][]);
+
+    static int[] band(int length) {
+        int[][] s = BAND.get();
+        if (s[0] == null || s[0].length < length) s[0] = new int[length];
+        return s[0];
+    }
+
+    static int[] quantize(float[] w) {
+        int[] q = new int[w.length];
+        for (int i = 0; i < w.length; i++) q[i] = Math.round(w[i] * (1 << FRAC));
+        return q;
+    }
+
+    static int saturate(long v, int max) {
+        return (v < 0) ? 0 : (v > max) ? max : (int) v;
+    }
+
+    // runs the ops on the shared pool (row bands) using two buffers in turn; in is not changed
+    static CompactImage process(CompactImage in, FusedChain chain, int numThreads) {
+        return process(in, chain, numThreads, null);
+    }
+
+    // same as part of an engine job (may be null): a cancel stops it within TILE_ROWS rows, and the
+    // (unfinished) result is returned for the caller to drop
+    static CompactImage process(CompactImage in, FusedChain chain, int numThreads, Engine.Job<?> job) {
+        CompactImage src = in;
+        CompactImage a = null, b = null;
+        for (int i = 0; i < chain.ops.length && (job == null || !job.cancelled); i++) {
+            Kernel k = chain.ops[i];
+            long t0 = System.nanoTime();
+            CompactImage dst;
+            if (src == a) {
+                if (b == null) b = new CompactImage(in.width, in.height, in.channels, in.depth);
+                dst = b;
+            } else {
+                if (a == null) a = new CompactImage(in.width, in.height, in.channels, in.depth);
+                dst = a;
+            }
+            final CompactImage s = src, d = dst;
+            Worker.forEachRowBand(in.height, numThreads, (r0, r1) -> {
+                for (int r = r0; r < r1 && (job == null || !job.cancelled); r += FusedChain.TILE_ROWS) {
+                    int r2 = Math.min(r1, r + FusedChain.TILE_ROWS);
+                    if (k == null) mirror(s, d, r, r2);
+                    else apply(s, d, k, r, r2);
+                }
+            });
+            src = dst;
+            if (chain.opNanos != null) chain.opNanos[i].add(System.nanoTime() - t0);
+        }
+        // the buffer that isn't the result goes back to the pool
+        if (a != null && a != src) BufferPool.recycle(a);
+        if (b != null && b != src) BufferPool.recycle(b);
+        src.format = in.format;
+        return src;
+    }
+
+    // rows [r0,r1) of out
+    static void apply(CompactImage in, CompactImage out, Kernel k, int r0, int r1) {
+        if (k.isSeparable() && k.size > 1) {
+            separable(in, out, k, r0, r1);
+        } else {
+            direct(in, out, k, r0, r1);
+        }
+    }
+
+    // cx[j + jj] is the (clamped) float offset of column j - half + jj, so the inner loop has no branches
+    private static int[] columnTable(int W, int C, int half) {
+        int[] cx = new int[W + 2 * half];
+        for (int x = 0; x < cx.length; x++) cx[x] = Math.min(Math.max(x - half, 0), W - 1) * C;
+        return cx;
+    }
+
+    static void direct(CompactImage in, CompactImage out, Kernel k, int r0, int r1) {
+        int W = in.width, H = in.height, C = in.channels, max = in.depth;
+        int kSize = k.size, half = kSize / 2, taps = kSize * kSize;
+        int[] wq = quantize(k.values);
+        // flipped, like the float code
+        int[] wf = new int[taps];
+        for (int q = 0; q < taps; q++) wf[q] = wq[taps - 1 - q];
+        int[] cx = columnTable(W, C, half);
+        int[] rowOff = new int[kSize];
+        byte[] b = in.bytes;
+        short[] sh = in.shorts;
+        long round = 1L << (FRAC - 1);
+
+        for (int i = r0; i < r1; i++) {
+            for (int ii = 0; ii < kSize; ii++)
+                rowOff[ii] = Math.min(Math.max(i - half + ii, 0), H - 1) * W * C;
+            for (int j = 0; j < W; j++) {
+                for (int c = 0; c < C; c++) {
+                    long acc = 0;
+                    for (int ii = 0; ii < kSize; ii++) {
+                        int base = rowOff[ii] + c;
+                        for (int jj = 0; jj < kSize; jj++) {
+                            int idx = base + cx[j + jj];
+                            int v = (b != null) ? b[idx] & 0xFF : sh[idx] & 0xFFFF;
+                            acc += (long) v * wf[ii * kSize + jj];
+                        }
+                    }
+                    out.set((i * W + j) * C + c, saturate((acc + round) >> FRAC, max));
+                }
+            }
+        }
+    }
+
+    // horizontal pass into an int band with BAND_FRAC fraction bits, then the vertical pass
+    static void separable(CompactImage in, CompactImage out, Kernel k, int r0, int r1) {
+        int W = in.width, H = in.height, C = in.channels, max = in.depth;
+        int kSize = k.size, half = kSize / 2;
+        int[] rq = quantize(k.row), cq = quantize(k.col);
+        int[] cx = columnTable(W, C, half);
+        byte[] b = in.bytes;
+        short[] sh = in.shorts;
+
+        int b0 = Math.max(0, r0 - half);
+        int b1 = Math.min(H, r1 + half);
+        int rowLen = W * C;
+        int[] band = band((b1 - b0) * rowLen);
+        int hShift = FRAC - BAND_FRAC;
+        long hRound = 1L << (hShift - 1);
+        for (int i = b0; i < b1; i++) {
+            int sRow = i * rowLen, bRow = (i - b0) * rowLen;
+            for (int j = 0; j < W; j++) {
+                for (int c = 0; c < C; c++) {
+                    long acc = 0;
+                    for (int jj = 0; jj < kSize; jj++) {
+                        int idx = sRow + cx[j + jj] + c;
+                        int v = (b != null) ? b[idx] & 0xFF : sh[idx] & 0xFFFF;
+                        acc += (long) v * rq[kSize - 1 - jj];
+                    }
+                    band[bRow + j * C + c] = (int) ((acc + hRound) >> hShift);
+                }
+            }
+        }
+
+        int vShift = FRAC + BAND_FRAC;
+        long vRound = 1L << (vShift - 1);
+        int[] bandRow = new int[kSize];
+        for (int i = r0; i < r1; i++) {
+            for (int ii = 0; ii < kSize; ii++)
+                bandRow[ii] = (Math.min(Math.max(i - half + ii, 0), H - 1) - b0) * rowLen;
+            int oRow = i * rowLen;
+            for (int x = 0; x < rowLen; x++) {
+                long acc = 0;
+                for (int ii = 0; ii < kSize; ii++) acc += (long) band[bandRow[ii] + x] * cq[kSize - 1 - ii];
+                out.set(oRow + x, saturate((acc + vRound) >> vShift, max));
+            }
+        }
+    }
+
+    static void mirror(CompactImage in, CompactImage out, int r0, int r1) {
+        int W = in.width, C = in.channels;
+        for (int i = r0; i < r1; i++) {
+            for (int j = 0; j < W; j++) {
+                int sIdx = (i * W + j) * C;
+                int dIdx = (i * W + (W - 1 - j)) * C;
+                for (int c = 0; c < C; c++) out.set(dIdx + c, in.get(sIdx + c));
+            }
+        }
+    }
+}
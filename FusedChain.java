@@ -0,0 +1,134 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+//runs a whole chain of operations (e.g. blur+sharpen+edge) in one sweep over the image
+//the output is produced tile by tile: each tile is grown by the halo the chain needs, every op
+//is applied to it while it is still in cache, and only the final pixels are written to the output.
+//no full size intermediate image is created
+public class FusedChain {
+
+    // tile size in pixels, 64 x 128 x 3 floats is ~96 KB per buffer so the ping-pong pair stays in L2
+    static final int TILE_ROWS = 64;
+    static final int TILE_COLS = 128;
+
+    // one kernel per op, null means mirror
+    final Kernel[] ops;
+    // how far (in pixels) an output pixel reaches back into the input
+    final int halo;
+    // run the kernels through VectorConvolution (only if Convolution.vectorAvailable())
+    boolean vector;
+    // name of every op, for reports
+    String[] labels;
+    // time spent in each op, summed over the tiles (null = not measured)
+    LongAdder[] opNanos;
+
+    FusedChain(List<Kernel> ops) {
+        this.ops = ops.toArray(new Kernel[0]);
+        int h = 0;
+        for (Kernel k : this.ops) if (k != null) h += k.radius();
+        this.halo = h;
+        this.labels = new String[this.ops.length];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = (this.ops[i] == null) ? "mirror" : this.ops[i].size + "x" + this.ops[i].size;
+        }
+    }
+
+    // starts adding up the time of every op
+    void measure() {
+        opNanos = new LongAdder[ops.length];
+        for (int i = 0; i < ops.length; i++) opNanos[i] = new LongAdder();
+    }
+
+    // a copy of the chain with its own op timers
+    FusedChain measured() {
+        FusedChain c = new FusedChain(Arrays.asList(ops));
+        c.vector = vector;
+        c.labels = labels;
+        c.measure();
+        return c;
+    }
+
+    // builds the chain from op names ("blur", "edge", "mirror", ...)
+    static FusedChain parse(String[] names) {
+        List<Kernel> ops = new ArrayList<>();
+        for (String raw : names) {
+            String op = raw.trim();
+            if (op.isEmpty()) continue;
+            ops.add(op.equalsIgnoreCase("mirror") ? null : Universal.getKernel(op));
+        }
+        return new FusedChain(ops);
+    }
+
+    // computes rows [r0,r1) and columns [c0,c1) of the chain's result
+    void run(Image in, float[] out, int r0, int r1, int c0, int c1) {
+        for (int tr = r0; tr < r1; tr += TILE_ROWS) {
+            for (int tc = c0; tc < c1; tc += TILE_COLS) {
+                runTile(in, out, tr, Math.min(tr + TILE_ROWS, r1), tc, Math.min(tc + TILE_COLS, c1));
+            }
+        }
+    }
+
+    void runTile(Image in, float[] out, int tr0, int tr1, int tc0, int tc1) {
+        int W = in.width, H = in.height, C = in.channels, n = ops.length;
+        if (n == 0) {
+            for (int i = tr0; i < tr1; i++) {
+                int off = (i * W + tc0) * C;
+                System.arraycopy(in.data, off, out, off, (tc1 - tc0) * C);
+            }
+            return;
+        }
+
+        // region every stage has to produce, going backwards from the tile: a kernel needs its
+        // radius around the region (cut at the image border), a mirror needs the flipped columns
+        int[][] reg = new int[n + 1][];
+        reg[n] = new int[]{tr0, tr1, tc0, tc1};
+        for (int s = n; s > 0; s--) {
+            int[] r = reg[s];
+            Kernel k = ops[s - 1];
+            if (k == null) {
+                reg[s - 1] = new int[]{r[0], r[1], W - r[3], W - r[2]};
+            } else {
+                int h = k.radius();
+                reg[s - 1] = new int[]{Math.max(0, r[0] - h), Math.min(H, r[1] + h),
+                        Math.max(0, r[2] - h), Math.min(W, r[3] + h)};
+            }
+        }
+
+        Convolution.Window src = new Convolution.Window(in.data, 0, 0, W);
+        for (int s = 1; s <= n; s++) {
+            int[] r = reg[s];
+            Convolution.Window dst;
+            if (s == n) {
+                dst = new Convolution.Window(out, 0, 0, W);
+            } else {
+                int w = r[3] - r[2];
+                dst = new Convolution.Window(Convolution.scratch(1 + s % 2, (r[1] - r[0]) * w * C), r[0], r[2], w);
+            }
+            Kernel k = ops[s - 1];
+            long t0 = (opNanos != null) ? System.nanoTime() : 0;
+            if (k == null) {
+                mirror(src, dst, W, C, r[0], r[1], r[2], r[3]);
+            } else if (vector) {
+                VectorConvolution.apply(src, dst, W, H, C, k, r[0], r[1], r[2], r[3]);
+            } else {
+                Convolution.apply(src, dst, W, H, C, k, r[0], r[1], r[2], r[3]);
+            }
+            if (opNanos != null) opNanos[s - 1].add(System.nanoTime() - t0);
+            src = dst;
+        }
+    }
+
+    private static void mirror(Convolution.Window src, Convolution.Window dst, int W, int C, int r0, int r1, int c0, int c1) {
+        for (int i = r0; i < r1; i++) {
+            int sRow = (i - src.r0) * src.w - src.c0;
+            int dRow = (i - dst.r0) * dst.w - dst.c0;
+            for (int j = c0; j < c1; j++) {
+                int sIdx = (sRow + W - 1 - j) * C;
+                int dIdx = (dRow + j) * C;
+                for (int c = 0; c < C; c++) dst.data[dIdx + c] = src.data[sIdx + c];
+            }
+        }
+    }
+}
@@ -4,8 +4,14 @@ import java.awt.*;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class GuiApp {
+    // one engine for every run of the window, so plans, the pool and the buffers stay warm between runs
+    private static final Engine engine = new Engine(Runtime.getRuntime().availableProcessors(), 1);
+
     public static void main(String[] args) {
         SwingUtilities.invokeLater(GuiApp::createAndShow);
     }
@@ -13,7 +19,7 @@ public class GuiApp {
     private static void createAndShow() {
         JFrame f = new JFrame("Kernel Image Processing");
         f.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        f.setSize(640, 360);
+        f.setSize(1100, 480);
         f.setLocationRelativeTo(null);
 
         JPanel panel = new JPanel(new GridBagLayout());
@@ -31,10 +37,12 @@ public class GuiApp {
         JTextField opsField = new JTextField("blur"); // e.g. blur+edge
 
         // add "mpj" to modes
-        String[] modes = {"auto", "sequential", "parallel", "distributed", "custom", "mpj"};
+        // "local" = the distributed (MPJ) algorithm with its ranks as threads of this JVM, no mpjrun needed
+        // "vector" = parallel with SIMD kernels (needs --add-modules jdk.incubator.vector, otherwise scalar)
+        String[] modes = {"auto", "sequential", "parallel", "vector", "distributed", "custom", "mpj", "local"};
         JComboBox<String> modeBox = new JComboBox<>(modes);
 
-        // used as threads in "custom" and #processes in "mpj"
+        // used as threads in "custom" and #processes in "mpj" and "local"
         JTextField threadsField = new JTextField("4");
         threadsField.setEnabled(false);
 
@@ -43,6 +51,17 @@ public class GuiApp {
         JScrollPane scroll = new JScrollPane(log);
 
         JButton runBtn = new JButton("Run");
+        JButton cancelBtn = new JButton("Cancel");
+        cancelBtn.setEnabled(false);
+        JProgressBar progress = new JProgressBar(0, 100);
+        progress.setStringPainted(true);
+        // the running engine job, for the cancel button
+        Engine.Job<?>[] running = new Engine.Job<?>[1];
+
+        // live preview of the chain on the input file (see PreviewPanel), restarted on every change
+        PreviewPanel preview = new PreviewPanel(engine);
+        preview.setPreferredSize(new Dimension(420, 360));
+        JCheckBox previewBox = new JCheckBox("Live preview", true);
 
         int row = 0;
         // Input row
@@ -73,15 +92,47 @@ public class GuiApp {
         // Run row
         c.gridx = 0; c.gridy = row; c.weightx = 0; panel.add(new JLabel(""), c);
         c.gridx = 1; c.gridy = row; c.weightx = 0; panel.add(runBtn, c);
+        c.gridx = 2; c.gridy = row; panel.add(cancelBtn, c);
+        c.gridx = 3; c.gridy = row; panel.add(previewBox, c);
         row++;
 
+        // Progress row
+        c.gridx = 0; c.gridy = row; c.weightx = 0; panel.add(new JLabel("Progress:"), c);
+        c.gridx = 1; c.gridy = row; c.weightx = 1; c.gridwidth = 3; panel.add(progress, c);
+        c.gridwidth = 1; row++;
+
         // Log row
         c.gridx = 0; c.gridy = row; c.gridwidth = 4; c.weightx = 1; c.weighty = 1; c.fill = GridBagConstraints.BOTH;
         panel.add(scroll, c);
 
-        f.setContentPane(panel);
+        JPanel content = new JPanel(new BorderLayout());
+        content.add(panel, BorderLayout.CENTER);
+        content.add(preview, BorderLayout.EAST);
+        f.setContentPane(content);
         f.setVisible(true);
 
+        // typing cancels the preview at once; a new one starts when the fields stay unchanged for 100 ms
+        Timer restart = new Timer(100, e -> {
+            if (previewBox.isSelected()) preview.show(inputField.getText().trim(), opsField.getText().trim());
+        });
+        restart.setRepeats(false);
+        javax.swing.event.DocumentListener changed = new javax.swing.event.DocumentListener() {
+            public void insertUpdate(javax.swing.event.DocumentEvent e) { fieldsChanged(); }
+            public void removeUpdate(javax.swing.event.DocumentEvent e) { fieldsChanged(); }
+            public void changedUpdate(javax.swing.event.DocumentEvent e) { fieldsChanged(); }
+
+            private void fieldsChanged() {
+                preview.cancel();
+                restart.restart();
+            }
+        };
+        inputField.getDocument().addDocumentListener(changed);
+        opsField.getDocument().addDocumentListener(changed);
+        previewBox.addActionListener(e -> {
+            if (previewBox.isSelected()) restart.restart();
+            else preview.show("", "");
+        });
+
         // Actions
         chooseFileBtn.addActionListener(e -> {
             JFileChooser ch = new JFileChooser();
@@ -111,9 +162,13 @@ public class GuiApp {
             }
         });
 
+        cancelBtn.addActionListener(e -> {
+            if (running[0] != null) running[0].cancel(true);
+        });
+
         modeBox.addActionListener(e -> {
             String m = ((String) modeBox.getSelectedItem()).toLowerCase();
-            threadsField.setEnabled("custom".equals(m) || "mpj".equals(m));
+            threadsField.setEnabled("custom".equals(m) || "mpj".equals(m) || "local".equals(m));
         });
 
         runBtn.addActionListener(e -> {
@@ -146,10 +201,54 @@ public class GuiApp {
             runBtn.setEnabled(false);
             log.append("Running (" + mode + ")...\n");
 
+            if (!"local".equals(mode) && !"mpj".equals(mode)) {
+                // a job on the shared engine; the thread modes only set how many threads it uses
+                engine.threads = ImageProcessor.threadsFor("custom".equals(mode) ? threadsField.getText().trim() : mode);
+                engine.vector = "vector".equals(mode) && Convolution.vectorAvailable();
+                File inFile = new File(inPath);
+                AtomicInteger shown = new AtomicInteger(-1);
+                java.util.function.DoubleConsumer onProgress = p -> {
+                    int pct = (int) (p * 100);
+                    if (shown.getAndSet(pct) != pct) SwingUtilities.invokeLater(() -> progress.setValue(pct));
+                };
+                long t0 = System.currentTimeMillis();
+                Engine.Job<File> job;
+                try {
+                    job = inFile.isDirectory() ? engine.submitFolder(inFile, outDir, opsStr, 0, onProgress)
+                            : engine.submit(inPath, new File(outDir, "output_java" + engine.threads + ".ppm"), opsStr, 0, onProgress);
+                } catch (RuntimeException ex) {
+                    log.append("Error: " + ex + "\n");
+                    runBtn.setEnabled(true);
+                    return;
+                }
+                running[0] = job;
+                progress.setValue(0);
+                cancelBtn.setEnabled(true);
+                job.whenComplete((file, failure) -> SwingUtilities.invokeLater(() -> {
+                    Throwable th = (failure instanceof CompletionException) ? failure.getCause() : failure;
+                    if (th instanceof CancellationException) log.append("Cancelled\n");
+                    else if (th != null) log.append("Error: " + th + "\n");
+                    else log.append("Done: " + file.getAbsolutePath() + "\n");
+                    log.append(String.format("Elapsed: %.3f s%n", (System.currentTimeMillis() - t0) / 1000.0));
+                    running[0] = null;
+                    cancelBtn.setEnabled(false);
+                    runBtn.setEnabled(true);
+                }));
+                return;
+            }
+
             new Thread(() -> {
                 long t0 = System.currentTimeMillis();
                 try {
-                    if ("mpj".equals(mode)) {
+                    if ("local".equals(mode)) { // the distributed modes aren't engine jobs (no progress, no cancel)
+                        int np;
+                        try {
+                            np = Integer.parseInt(threadsField.getText().trim());
+                        } catch (Exception ex) {
+                            np = Math.max(2, Runtime.getRuntime().availableProcessors());
+                        }
+                        MpjImageProcessor.main(new String[]{inPath, outNorm, opsStr, "--local=" + np});
+                    } else if ("mpj".equals(mode)) {
                         int np;
                         try {
                             np = Integer.parseInt(threadsField.getText().trim());
@@ -160,24 +259,6 @@ public class GuiApp {
                         final int exitCode = rc;
                         SwingUtilities.invokeLater(() ->
                                 log.append("MPJ finished with exit code " + exitCode + "\n"));
-                    } else {
-                        List<String> argList = new ArrayList<>();
-                        argList.add(inPath);
-                        argList.add(outNorm);
-                        argList.add(opsStr);
-                        if (!"auto".equals(mode)) {
-                            if ("custom".equals(mode)) {
-                                argList.add(threadsField.getText().trim());
-                            } else {
-                                argList.add(mode);
-                            }
-                        }
-                        try {
-                            ImageProcessor.main(argList.toArray(new String[0]));
-                        } catch (InterruptedException ie) {
-                            SwingUtilities.invokeLater(() ->
-                                    log.append("Interrupted: " + ie.getMessage() + "\n"));
-                        }
                     }
                 } catch (Throwable th) {
                     SwingUtilities.invokeLater(() -> log.append("Error: " + th + "\n"));
@@ -13,6 +13,9 @@ public class Image {
     int depth;
     // Data associated with the  The Image
     float[] data;
+    // the Netpbm format it was read from (2, 3, 5 or 6 as in P2..P6), so it is written back the same way;
+    // 0 (made in memory) is written as binary P5/P6
+    int format;
 
     Image() {
         this.width = 0;
@@ -22,4 +25,11 @@ public class Image {
         this.data = null;
     }
 
+    // after a failed read the header may be set already: back to an empty image (width 0, which the
+    // callers skip), and the buffers go back to the pool
+    void unread() {
+        BufferPool.recycle(this);
+        width = height = channels = 0;
+    }
+
 }
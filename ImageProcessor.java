@@ -1,5 +1,6 @@
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.CompletionException;
 
 //Kernel image processing class
 //runs the program in distributed mode
@@ -8,8 +9,30 @@ public class ImageProcessor {
 public static void main(String[] args) // Handle errors
        throws InterruptedException {
 
+        // options (--name or --name=value) can be anywhere, the other arguments keep their positions
+        Map<String, String> options = new HashMap<>();
+        List<String> positional = new ArrayList<>();
+        for (String a : args) {
+            if (a.startsWith("--")) {
+                int eq = a.indexOf('=');
+                options.put((eq < 0) ? a.substring(2) : a.substring(2, eq), (eq < 0) ? "" : a.substring(eq + 1));
+            } else {
+                positional.add(a);
+            }
+        }
+        args = positional.toArray(new String[0]);
+        boolean compact = options.containsKey("compact"); //8/16-bit storage with fixed-point kernels
+        boolean stream = options.containsKey("stream"); //row by row, for images that don't fit in memory
+        boolean fold = options.containsKey("fold"); //the planner may merge adjacent kernels into one (changes the border)
+        String metricsPath = options.get("metrics"); //per-stage report, JSON lines (or CSV if the name ends with .csv)
+        boolean jmx = options.containsKey("jmx"); //live totals over JMX
+        String cacheDir = options.get("cache"); //results of unchanged inputs are taken from this folder
+        long cacheBytes = options.containsKey("cache-size") ? Long.parseLong(options.get("cache-size")) << 20
+                : ResultCache.DEFAULT_MAX_BYTES;
+        boolean cacheLink = !options.containsKey("cache-copy"); //hits are hard links, or copies
+
         if (args.length < 3) {
-            System.out.println("Usage: java ImageProcessor <input file/folder> <output folder> <kernel1> [kernel2 kernel3...] <thread mode>"); //if the user did't give all of the arguments 
+            System.out.println("Usage: java ImageProcessor <input file/folder> <output folder> <kernel1> [kernel2 kernel3...] <thread mode> [--compact] [--stream] [--fold] [--metrics=<file.jsonl|file.csv>] [--jmx] [--cache=<dir>] [--cache-size=<MB>] [--cache-copy]"); //if the user did't give all of the arguments 
             // this instructions for arguments are printed (at least one kernel is needed, if more, use ',' or '+' between them'). If input will be a folder, it will use all of the images
             // in the folder, if it's a file, only that image and you can also choose how many threads you want to use sequential, parallel, distributed or just a number, if you don't specify, 
             // it will default to CPU count
@@ -24,115 +47,91 @@ public static void main(String[] args) // Handle errors
             return;
         }
 
-        String[] ops = args[2].split("[,+]"); //if you want to use more than one kernel at once (you can use , or + between them in the instructions)
+        String ops = args[2]; //if you want to use more than one kernel at once (you can use , or + between them in the instructions)
 
-        int numThreads;  //this part uses the argument for the number od threads, if given
-        if (args.length >= 4) {
-            String maybeMode = args[3].toLowerCase();
-            if (maybeMode.equals("sequential")) {  //if the argument is sequential use only one thread
-            numThreads = 1;
-        } else if (maybeMode.equals("parallel")) { //if the argument is parallel use the CPU count, but at least two threads
-            numThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
-        } else if (maybeMode.equals("distributed")) {  // if the argument is distributed, use double the CPU count, but at least 4 threads
-            numThreads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
-        } else {
-            try {    // if none of the above is in defined, check if the number of threads is a number and use it
-                numThreads = Integer.parseInt(args[3]);
-            } catch (NumberFormatException e) {     //if it fails use the CPU count
-                numThreads = Runtime.getRuntime().availableProcessors();
-            }
+        int numThreads = threadsFor((args.length >= 4) ? args[3] : "auto");  //this part uses the argument for the number od threads, if given
+        boolean vector = args.length >= 4 && args[3].equalsIgnoreCase("vector"); //SIMD kernels (Vector API), only in "vector" mode
+
+        // the Vector API is an incubator module, it has to be enabled when java is started
+        if (vector && !Convolution.vectorAvailable()) {
+            System.out.println("Vector API not enabled (start java with --add-modules jdk.incubator.vector), using the scalar kernels");
+            vector = false;
         }
-        } else {  //if there was no argument for the number of threads, just use the CPU count
-            numThreads = Runtime.getRuntime().availableProcessors();
+        if (vector && compact) {
+            System.out.println("Compact mode has no SIMD kernels, using the fixed-point kernels");
+            vector = false;
         }
 
-
-        //for uploading the whole folder:
-
-        if (inFile.isDirectory()) {
-    File[] files = inFile.listFiles((dir, name) -> name.toLowerCase().endsWith(".ppm"));  //read them all
-    if (files != null) {
-        for (File f : files) {
-            PpmImage input = new PpmImage(), output, current; 
-            input.ppmImport(f.getAbsolutePath());
-            current = input;
-
-            long start = System.currentTimeMillis(); //time used
-            for (String opRaw : ops) {
-                String op = opRaw.trim();
-                output = new PpmImage(current.width, current.height, current.channels, current.depth);
-
-            
-                if (op.equalsIgnoreCase("mirror")) {
-                    Worker.mirrorParallel(current, output, numThreads);
-                } else {
-                    float[] kernel = Universal.getKernelByName(op);
-                    int kernelSize = (int) Math.sqrt(kernel.length);
-
-                    if (numThreads == 1) {
-                        Worker.applyKernelSingle(current, output, kernelSize, kernel);  //SEQUENTIAL 
-                    } else {
-                        Worker[] workers = new Worker[numThreads];
-                        for (int i = 0; i < numThreads; i++)
-                            workers[i] = new Worker(i, numThreads, current, output, kernelSize, kernel);
-                        for (int i = 0; i < numThreads; i++)
-                            workers[i].start();
-                        for (Worker w : workers) w.join();
-                    }
-                }
-
-                current = output; // chain to next operation
+        try {
+            Metrics.open(metricsPath, -1);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Could not open file " + metricsPath);
+        }
+        if (jmx) Metrics.registerMBean();
+
+        // the CLI is one job on an engine, like any other client (see Engine)
+        try (Engine engine = new Engine(numThreads, 1)) {
+            engine.compact = compact;
+            engine.stream = stream;
+            engine.vector = vector;
+            engine.fold = fold;
+            engine.measure = Metrics.enabled() || jmx;
+            engine.cacheDir = cacheDir;
+            engine.cacheBytes = cacheBytes;
+            engine.cacheLink = cacheLink;
+
+            // the ops are planned once (identity ops dropped, mirrors moved, with --fold cheap kernels folded) for all files
+            System.out.println("Plan: " + engine.plan(ops).describe());
+            Engine.Job<File> job = inFile.isDirectory()
+                    ? engine.submitFolder(inFile, outDir, ops, 0, null) // every .ppm/.pgm/.pnm of the folder
+                    : engine.submit(inFile.getPath(), new File(outDir, "output_java" + numThreads + ".ppm"), ops, 0, null);
+            try {
+                job.join();
+            } catch (CompletionException e) {
+                e.getCause().printStackTrace();
+                System.out.println("Could not process " + inFile);
             }
-            long end = System.currentTimeMillis();
-            long elapsed = (end - start);
-            System.out.print((double) elapsed / 1000);
-
-            File outFile = new File(outDir, "output_" + f.getName());
-                    current.ppmExport(outFile.getAbsolutePath()); //save
+            System.out.println(BufferPool.report());
+            String cacheReport = engine.cacheReport();
+            if (cacheReport != null) System.out.println(cacheReport);
+        } finally {
+            Metrics.close();
         }
     }
-    return; 
-}
-
-        //for uploading a single image:
-
-PpmImage input = new PpmImage(), output, current; //read just one image
-input.ppmImport(args[0]);
-current = input;
-
-long start = System.currentTimeMillis(); //time used
-
-for (String opRaw : ops) {
-    String op = opRaw.trim();
-    output = new PpmImage(current.width, current.height, current.channels, current.depth);
-
-    if (op.equalsIgnoreCase("mirror")) {
-        Worker.mirrorParallel(current, output, numThreads);
-    } else {
-        float[] kernel = Universal.getKernelByName(op);
-        int kernelSize = (int) Math.sqrt(kernel.length);
 
-         if (numThreads == 1) {
-            Worker.applyKernelSingle(current, output, kernelSize, kernel);  //SEQUENTIAL 
-            } else {
-                Worker[] workers = new Worker[numThreads];
-                for (int i = 0; i < numThreads; i++)
-                     workers[i] = new Worker(i, numThreads, current, output, kernelSize, kernel);
-                for (int i = 0; i < numThreads; i++)
-                       workers[i].start();
-                for (Worker w : workers) w.join();
-            }
+    // the thread count of a thread mode: sequential (1), parallel and vector (the CPU count, but at least 2),
+    // distributed (double the CPU count, but at least 4), a number, or anything else for the CPU count
+    static int threadsFor(String mode) {
+        switch (mode.toLowerCase()) {
+            case "sequential":
+                return 1;
+            case "parallel":
+            case "vector":
+                return Math.max(2, Runtime.getRuntime().availableProcessors());
+            case "distributed":
+                return Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+            default:
+                try {    // if none of the above is in defined, check if the number of threads is a number and use it
+                    return Integer.parseInt(mode);
+                } catch (NumberFormatException e) {     //if it fails use the CPU count
+                    return Runtime.getRuntime().availableProcessors();
+                }
+        }
     }
 
-    current = output; // chain to next operation
-}
-
-long end = System.currentTimeMillis();
-long elapsed = (end - start);
-System.out.print((double) elapsed / 1000); //print how long the process took in sc
+    // applies all ops to the image; the chain runs tile by tile on the shared pool,
+    // so only the final image is needed (from BufferPool) and no threads are created per op or per file
+    static PpmImage process(PpmImage input, FusedChain chain, int numThreads) {
+        return process(input, chain, numThreads, null);
+    }
 
-File outFile = new File(outDir, "output_java" + numThreads + ".ppm");
-        current.ppmExport(outFile.getAbsolutePath()); // save the image in a file
+    // same as part of an engine job (may be null), which can stop it between tiles
+    static PpmImage process(PpmImage input, FusedChain chain, int numThreads, Engine.Job<?> job) {
+        PpmImage output = PpmImage.pooled(input.width, input.height, input.channels, input.depth);
+        output.format = input.format;
+        Worker.runChain(input, output.data, chain, numThreads, job);
+        return output;
     }
 
 }
@@ -0,0 +1,127 @@
+//class that holds a square convolution kernel
+//if the kernel is rank-1 (every row is a multiple of the same row) it also keeps the
+//column and row vectors, so it can be applied as a horizontal pass plus a vertical pass
+public class Kernel {
+
+    // relative tolerance used when checking if a kernel is separable
+    static final float SEPARABLE_EPS = 1e-6f;
+
+    // kernel values, row by row (size * size)
+    final float[] values;
+    // width (and height) of the kernel
+    final int size;
+    // column and row factors, values[i * size + j] == col[i] * row[j]; null if not separable
+    final float[] col;
+    final float[] row;
+
+    // full kSize x kSize kernel, separability is detected automatically
+    Kernel(float[] values) {
+        int size = (int) Math.sqrt(values.length);
+        if (size * size != values.length) {
+            throw new IllegalArgumentException("Kernel is not square: " + values.length + " values");
+        }
+        this.values = values;
+        this.size = size;
+        float[][] factors = factorize(values, size);
+        this.col = (factors == null) ? null : factors[0];
+        this.row = (factors == null) ? null : factors[1];
+    }
+
+    // kernel declared as a column vector times a row vector
+    Kernel(float[] col, float[] row) {
+        if (col.length != row.length) {
+            throw new IllegalArgumentException("Column and row vectors must have the same length");
+        }
+        this.size = row.length;
+        this.col = col;
+        this.row = row;
+        this.values = new float[size * size];
+        for (int i = 0; i < size; i++)
+            for (int j = 0; j < size; j++)
+                this.values[i * size + j] = col[i] * row[j];
+    }
+
+    boolean isSeparable() {
+        return row != null;
+    }
+
+    // radius of the kernel (how many pixels it reaches on each side)
+    int radius() {
+        return size / 2;
+    }
+
+    // multiply-adds per output sample, used to compare ways of running a kernel
+    int cost() {
+        return isSeparable() ? 2 * size : size * size;
+    }
+
+    // rank-1 test: take the row and column through the largest element and check that
+    // their outer product gives back the kernel; returns {col, row} or null
+    private static float[][] factorize(float[] v, int n) {
+        int pivot = 0;
+        for (int i = 1; i < v.length; i++)
+            if (Math.abs(v[i]) > Math.abs(v[pivot])) pivot = i;
+        float p = v[pivot];
+        if (p == 0f) return null;
+        int pr = pivot / n, pc = pivot % n;
+
+        float[] row = new float[n];
+        float[] col = new float[n];
+        for (int j = 0; j < n; j++) row[j] = v[pr * n + j];
+        for (int i = 0; i < n; i++) col[i] = v[i * n + pc] / p;
+
+        float tol = SEPARABLE_EPS * Math.abs(p);
+        for (int i = 0; i < n; i++)
+            for (int j = 0; j < n; j++)
+                if (Math.abs(col[i] * row[j] - v[i * n + j]) > tol) return null;
+        return new float[][]{col, row};
+    }
+
+    // 1 in the middle, 0 everywhere else
+    boolean isIdentity() {
+        int mid = (size * size) / 2;
+        for (int i = 0; i < values.length; i++)
+            if (values[i] != ((i == mid) ? 1f : 0f)) return false;
+        return true;
+    }
+
+    // left-right flipped kernel: mirror followed by this kernel == the flipped kernel followed by mirror
+    Kernel flipHorizontal() {
+        if (isSeparable()) return new Kernel(col.clone(), reversed(row));
+        float[] v = new float[values.length];
+        for (int i = 0; i < size; i++)
+            for (int j = 0; j < size; j++)
+                v[i * size + j] = values[i * size + (size - 1 - j)];
+        return new Kernel(v);
+    }
+
+    // one kernel doing the same as applying this one and then next (away from the image border):
+    // the full 2D convolution of the two, (size + next.size - 1) wide
+    Kernel then(Kernel next) {
+        if (isSeparable() && next.isSeparable()) {
+            return new Kernel(convolve(col, next.col), convolve(row, next.row));
+        }
+        int n = size + next.size - 1;
+        float[] v = new float[n * n];
+        for (int i = 0; i < size; i++)
+            for (int j = 0; j < size; j++)
+                for (int p = 0; p < next.size; p++)
+                    for (int q = 0; q < next.size; q++)
+                        v[(i + p) * n + (j + q)] += values[i * size + j] * next.values[p * next.size + q];
+        return new Kernel(v);
+    }
+
+    private static float[] convolve(float[] a, float[] b) {
+        float[] r = new float[a.length + b.length - 1];
+        for (int i = 0; i < a.length; i++)
+            for (int j = 0; j < b.length; j++)
+                r[i + j] += a[i] * b[j];
+        return r;
+    }
+
+    private static float[] reversed(float[] a) {
+        float[] r = new float[a.length];
+        for (int i = 0; i < a.length; i++) r[i] = a[a.length - 1 - i];
+        return r;
+    }
+}
@@ -0,0 +1,169 @@
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+//Communicator for N ranks running as threads of this JVM, so distributed mode can be run and
+//measured without MPJ Express (tests, one machine, the GUI)
+//messages are copied into the receiver's mailbox (shared memory), so send never blocks; the
+//collectives are built from send/recv through rank 0 or the root
+class LocalCommunicator implements Communicator {
+
+    // tags below 0 are used by the collectives, so they never mix with the caller's messages
+    private static final int BCAST = -2, SCATTER = -3, GATHER = -4, REDUCE = -5;
+
+    private static final class Message {
+        final int source, tag;
+        final Object data;
+
+        Message(int source, int tag, Object data) {
+            this.source = source;
+            this.tag = tag;
+            this.data = data;
+        }
+    }
+
+    // what the ranks share
+    private static final class Group {
+        final List<List<Message>> boxes = new ArrayList<>();
+        volatile Throwable failed; // set when a rank fails, so the others stop waiting
+
+        Group(int size) {
+            for (int i = 0; i < size; i++) boxes.add(new ArrayList<>());
+        }
+    }
+
+    private final Group group;
+    private final int rank;
+
+    private LocalCommunicator(Group group, int rank) {
+        this.group = group;
+        this.rank = rank;
+    }
+
+    // runs task on n ranks (threads "rank-0" ... "rank-<n-1>") and waits for all of them;
+    // the first failure is thrown
+    static void run(int n, Task task) throws Exception {
+        Group group = new Group(n);
+        Thread[] threads = new Thread[n];
+        for (int r = 0; r < n; r++) {
+            LocalCommunicator comm = new LocalCommunicator(group, r);
+            threads[r] = new Thread(() -> {
+                try {
+                    task.run(comm);
+                } catch (Throwable t) {
+                    synchronized (group) {
+                        if (group.failed == null) group.failed = t;
+                    }
+                    for (List<Message> box : group.boxes) {
+                        synchronized (box) {
+                            box.notifyAll();
+                        }
+                    }
+                }
+            }, "rank-" + r);
+            threads[r].start();
+        }
+        for (Thread t : threads) t.join();
+        Throwable t = group.failed;
+        if (t instanceof Exception) throw (Exception) t;
+        if (t != null) throw new RuntimeException(t);
+    }
+
+    public int rank() {
+        return rank;
+    }
+
+    public int size() {
+        return group.boxes.size();
+    }
+
+    public void bcast(Object buf, int off, int count, int root) throws InterruptedException {
+        if (rank == root) {
+            for (int p = 0; p < size(); p++) if (p != root) send(buf, off, count, p, BCAST);
+        } else {
+            recv(buf, off, count, root, BCAST);
+        }
+    }
+
+    public void scatterv(Object send, int[] counts, int[] displs, Object recv, int recvOff, int root)
+            throws InterruptedException {
+        if (rank == root) {
+            for (int p = 0; p < size(); p++) if (p != root) send(send, displs[p], counts[p], p, SCATTER);
+            System.arraycopy(send, displs[root], recv, recvOff, counts[root]);
+        } else {
+            recv(recv, recvOff, counts[rank], root, SCATTER);
+        }
+    }
+
+    public void gatherv(Object send, int sendOff, int count, Object recv, int[] counts, int[] displs, int root)
+            throws InterruptedException {
+        if (rank == root) {
+            System.arraycopy(send, sendOff, recv, displs[root], count);
+            for (int p = 0; p < size(); p++) if (p != root) recv(recv, displs[p], counts[p], p, GATHER);
+        } else {
+            send(send, sendOff, count, root, GATHER);
+        }
+    }
+
+    public double allreduce(double value, Op op) throws InterruptedException {
+        double[] v = {value};
+        if (rank == 0) {
+            double[] other = new double[1];
+            for (int p = 1; p < size(); p++) {
+                recv(other, 0, 1, p, REDUCE);
+                v[0] = (op == Op.MAX) ? Math.max(v[0], other[0]) : (op == Op.MIN) ? Math.min(v[0], other[0])
+                        : v[0] + other[0];
+            }
+        } else {
+            send(v, 0, 1, 0, REDUCE);
+        }
+        bcast(v, 0, 1, 0);
+        return v[0];
+    }
+
+    public void send(Object buf, int off, int count, int dest, int tag) {
+        Object copy = Array.newInstance(buf.getClass().getComponentType(), count);
+        System.arraycopy(buf, off, copy, 0, count);
+        List<Message> box = group.boxes.get(dest);
+        synchronized (box) {
+            box.add(new Message(rank, tag, copy));
+            box.notifyAll();
+        }
+    }
+
+    public int recv(Object buf, int off, int count, int source, int tag) throws InterruptedException {
+        List<Message> box = group.boxes.get(rank);
+        synchronized (box) {
+            while (true) {
+                // the first matching message, so messages from one rank with one tag stay in order
+                for (Iterator<Message> it = box.iterator(); it.hasNext(); ) {
+                    Message m = it.next();
+                    if (m.tag == tag && (source == ANY_SOURCE || m.source == source)) {
+                        it.remove();
+                        int n = Array.getLength(m.data);
+                        if (n > count) throw new IllegalStateException("Message of " + n + " elements, room for " + count);
+                        System.arraycopy(m.data, 0, buf, off, n);
+                        return m.source;
+                    }
+                }
+                if (group.failed != null) throw new IllegalStateException("Another rank failed", group.failed);
+                box.wait();
+            }
+        }
+    }
+
+    public void sendrecv(Object sendBuf, int sendOff, int sendCount, int dest, int sendTag,
+                         Object recvBuf, int recvOff, int recvCount, int source, int recvTag)
+            throws InterruptedException {
+        send(sendBuf, sendOff, sendCount, dest, sendTag);
+        recv(recvBuf, recvOff, recvCount, source, recvTag);
+    }
+
+    public void barrier() throws InterruptedException {
+        allreduce(0, Op.SUM);
+    }
+
+    public void close() {
+    }
+}
@@ -0,0 +1,183 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+//per-stage measurements of a run (decode, every op, encode, queue waits, ...)
+//every stage of every file is written as one line: a JSON object, or a CSV row if the file name
+//ends with .csv. A "file" line closes each file with its totals. The same totals are kept for the
+//whole run and can be watched live over JMX (jconsole, ImageProcessor:type=Metrics)
+//allocated bytes are counted for the thread that ran the stage (pool threads only reuse their
+//thread-local scratch buffers, so what a file allocates is allocated by the stage threads)
+//for the comm: stages of distributed mode, bytes_written is what the rank sent to the others; those
+//bytes are not counted as file I/O in the totals
+public class Metrics implements MetricsMXBean {
+
+    static final String CSV_HEADER = "file,rank,thread,stage,ms,bytes_read,bytes_written,mpix_s,alloc_bytes";
+
+    private static PrintStream out; // null when no report was asked for
+    private static boolean csv;
+    private static final com.sun.management.ThreadMXBean THREADS = threads();
+    static final Metrics TOTALS = new Metrics();
+
+    private final LongAdder files = new LongAdder(), pixels = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder(), bytesWritten = new LongAdder();
+    private final LongAdder decodeNanos = new LongAdder(), opNanos = new LongAdder();
+    private final LongAdder encodeNanos = new LongAdder(), waitNanos = new LongAdder();
+    private final LongAdder fileNanos = new LongAdder(), allocated = new LongAdder();
+
+    // start of a stage on the current thread
+    static final class Timer {
+        final long t0 = System.nanoTime();
+        final long a0 = allocatedBytes();
+    }
+
+    // the stages of one file
+    static final class Run {
+        final String file;
+        final int rank; // -1 when not distributed
+        final Timer start = new Timer();
+        long pixels;
+        private long read, written, alloc;
+
+        Run(String file) {
+            this(file, -1);
+        }
+
+        Run(String file, int rank) {
+            this.file = file;
+            this.rank = rank;
+        }
+
+        // a stage that ran on this thread since t
+        void stage(String stage, Timer t, long bytesRead, long bytesWritten) {
+            stage(stage, System.nanoTime() - t.t0, bytesRead, bytesWritten, allocatedBytes() - t.a0);
+        }
+
+        synchronized void stage(String stage, long nanos, long bytesRead, long bytesWritten, long allocBytes) {
+            if (!stage.startsWith("comm:")) {
+                read += bytesRead;
+                written += bytesWritten;
+                TOTALS.bytesRead.add(bytesRead);
+                TOTALS.bytesWritten.add(bytesWritten);
+            }
+            alloc += allocBytes;
+            TOTALS.allocated.add(allocBytes);
+            if (stage.equals("decode")) TOTALS.decodeNanos.add(nanos);
+            else if (stage.equals("encode")) TOTALS.encodeNanos.add(nanos);
+            else if (stage.startsWith("wait")) TOTALS.waitNanos.add(nanos);
+            else if (stage.startsWith("op:")) TOTALS.opNanos.add(nanos); // "compute" is the wall time of the same work
+            emit(file, rank, stage, nanos, bytesRead, bytesWritten, 0, allocBytes);
+        }
+
+        // time spent in each op of the chain (summed over the threads that ran it)
+        void ops(String[] labels, LongAdder[] nanos) {
+            if (nanos == null) return;
+            for (int i = 0; i < labels.length; i++) stage("op:" + labels[i], nanos[i].sumThenReset(), 0, 0, 0);
+        }
+
+        // wall time from the start of the first stage, and the totals of the file
+        synchronized void done() {
+            long nanos = System.nanoTime() - start.t0;
+            TOTALS.files.increment();
+            TOTALS.pixels.add(pixels);
+            TOTALS.fileNanos.add(nanos);
+            emit(file, rank, "file", nanos, read, written, pixels, alloc);
+        }
+    }
+
+    // writes the report to path (if not null); MPJ ranks > 0 get their own file next to it
+    static void open(String path, int mpjRank) throws IOException {
+        if (path == null) return;
+        if (mpjRank > 0) {
+            int dot = path.lastIndexOf('.');
+            path = (dot < 0) ? path + ".rank" + mpjRank : path.substring(0, dot) + ".rank" + mpjRank + path.substring(dot);
+        }
+        csv = path.toLowerCase().endsWith(".csv");
+        out = new PrintStream(new FileOutputStream(path), false, "UTF-8");
+        if (csv) out.println(CSV_HEADER);
+    }
+
+    static synchronized void close() {
+        if (out != null) out.close();
+        out = null;
+    }
+
+    static boolean enabled() {
+        return out != null;
+    }
+
+    // live totals over JMX, for long batch runs
+    static void registerMBean() {
+        try {
+            ObjectName name = new ObjectName("ImageProcessor:type=Metrics");
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(TOTALS, name);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.out.println("Could not register the metrics MBean");
+        }
+    }
+
+    private static synchronized void emit(String file, int rank, String stage, long nanos, long read, long written,
+                                          long px, long alloc) {
+        if (out == null) return;
+        double ms = nanos / 1e6;
+        double mpix = (px > 0 && nanos > 0) ? px / (nanos / 1e3) : 0; // px per us == MP per s
+        String thread = Thread.currentThread().getName();
+        if (csv) {
+            out.printf(Locale.ROOT, "%s,%d,%s,%s,%.3f,%d,%d,%.2f,%d%n",
+                    quoteCsv(file), rank, quoteCsv(thread), quoteCsv(stage), ms, read, written, mpix, alloc);
+        } else {
+            out.printf(Locale.ROOT, "{\"file\":%s,\"rank\":%d,\"thread\":%s,\"stage\":%s,\"ms\":%.3f,"
+                            + "\"bytes_read\":%d,\"bytes_written\":%d,\"mpix_s\":%.2f,\"alloc_bytes\":%d}%n",
+                    quoteJson(file), rank, quoteJson(thread), quoteJson(stage), ms, read, written, mpix, alloc);
+        }
+        out.flush();
+    }
+
+    private static String quoteJson(String s) {
+        StringBuilder b = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') b.append('\\').append(c);
+            else if (c < 0x20) b.append(String.format("\\u%04x", (int) c));
+            else b.append(c);
+        }
+        return b.append('"').toString();
+    }
+
+    private static String quoteCsv(String s) {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0) return s;
+        return "\"" + s.replace("\"", "\"\"") + "\"";
+    }
+
+    static long allocatedBytes() {
+        return (THREADS == null) ? 0 : THREADS.getCurrentThreadAllocatedBytes();
+    }
+
+    private static com.sun.management.ThreadMXBean threads() {
+        java.lang.management.ThreadMXBean b = ManagementFactory.getThreadMXBean();
+        if (!(b instanceof com.sun.management.ThreadMXBean)) return null;
+        com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean) b;
+        return t.isThreadAllocatedMemorySupported() && t.isThreadAllocatedMemoryEnabled() ? t : null;
+    }
+
+    // --- MetricsMXBean ---
+    public long getFilesDone() { return files.sum(); }
+    public long getBytesRead() { return bytesRead.sum(); }
+    public long getBytesWritten() { return bytesWritten.sum(); }
+    public long getAllocatedBytes() { return allocated.sum(); }
+    public double getDecodeSeconds() { return decodeNanos.sum() / 1e9; }
+    public double getOpSeconds() { return opNanos.sum() / 1e9; }
+    public double getEncodeSeconds() { return encodeNanos.sum() / 1e9; }
+    public double getQueueWaitSeconds() { return waitNanos.sum() / 1e9; }
+    public double getMegapixelsPerSecond() {
+        long n = fileNanos.sum();
+        return (n == 0) ? 0 : pixels.sum() / (n / 1e3);
+    }
+}
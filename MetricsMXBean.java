@@ -0,0 +1,12 @@
+//what the JMX view of a run shows (see Metrics)
+public interface MetricsMXBean {
+    long getFilesDone();
+    long getBytesRead();
+    long getBytesWritten();
+    long getAllocatedBytes();
+    double getDecodeSeconds();
+    double getOpSeconds();
+    double getEncodeSeconds();
+    double getQueueWaitSeconds();
+    double getMegapixelsPerSecond();
+}
@@ -0,0 +1,92 @@
+import mpi.*; // MPJ Express, only used in this class
+
+import java.io.IOException;
+
+//Communicator on MPJ Express (started with mpjrun)
+class MpjCommunicator implements Communicator {
+
+    private final Intracomm comm = MPI.COMM_WORLD;
+
+    private MpjCommunicator() {
+    }
+
+    // MPI.Init, returns the communicator of all ranks
+    static MpjCommunicator init(String[] args) throws MPIException {
+        MPI.Init(args); // Example1 style init/finalize.  // ref: Example1Init
+        return new MpjCommunicator();
+    }
+
+    public int rank() {
+        try {
+            return comm.Rank();
+        } catch (MPIException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public int size() {
+        try {
+            return comm.Size();
+        } catch (MPIException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void bcast(Object buf, int off, int count, int root) throws MPIException {
+        comm.Bcast(buf, off, count, type(buf), root);
+    }
+
+    public void scatterv(Object send, int[] counts, int[] displs, Object recv, int recvOff, int root)
+            throws MPIException {
+        comm.Scatterv(send, 0, counts, displs, type(recv), recv, recvOff, counts[rank()], type(recv), root);
+    }
+
+    public void gatherv(Object send, int sendOff, int count, Object recv, int[] counts, int[] displs, int root)
+            throws MPIException {
+        comm.Gatherv(send, sendOff, count, type(send), recv, 0, counts, displs, type(send), root);
+    }
+
+    public double allreduce(double value, Op op) throws MPIException {
+        double[] send = {value}, recv = new double[1];
+        mpi.Op o = (op == Op.MAX) ? MPI.MAX : (op == Op.MIN) ? MPI.MIN : MPI.SUM;
+        comm.Allreduce(send, 0, recv, 0, 1, MPI.DOUBLE, o); // ref: Example8AllReduce
+        return recv[0];
+    }
+
+    public void send(Object buf, int off, int count, int dest, int tag) throws MPIException {
+        comm.Send(buf, off, count, type(buf), dest, tag);
+    }
+
+    public int recv(Object buf, int off, int count, int source, int tag) throws MPIException {
+        Status st = comm.Recv(buf, off, count, type(buf), (source == ANY_SOURCE) ? MPI.ANY_SOURCE : source, tag);
+        return st.source;
+    }
+
+    public void sendrecv(Object sendBuf, int sendOff, int sendCount, int dest, int sendTag,
+                         Object recvBuf, int recvOff, int recvCount, int source, int recvTag) throws MPIException {
+        comm.Sendrecv(sendBuf, sendOff, sendCount, type(sendBuf), dest, sendTag,
+                      recvBuf, recvOff, recvCount, type(recvBuf), source, recvTag);
+    }
+
+    public void barrier() throws MPIException {
+        comm.Barrier();
+    }
+
+    public void close() throws IOException {
+        try {
+            MPI.Finalize(); // Example1 finish.  // ref: Example1Init
+        } catch (MPIException e) {
+            throw new IOException("MPI.Finalize failed", e);
+        }
+    }
+
+    private static Datatype type(Object buf) {
+        if (buf instanceof float[]) return MPI.FLOAT;
+        if (buf instanceof int[]) return MPI.INT;
+        if (buf instanceof double[]) return MPI.DOUBLE;
+        if (buf instanceof byte[]) return MPI.BYTE;
+        if (buf instanceof short[]) return MPI.SHORT;
+        if (buf instanceof long[]) return MPI.LONG;
+        throw new IllegalArgumentException("Unsupported buffer type " + buf.getClass().getSimpleName());
+    }
+}
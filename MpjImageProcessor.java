@@ -1,81 +1,158 @@
-// Run with MPJ Express
-import mpi.*;     // MPJ Express
+// Run with MPJ Express (mpjrun), or with --local=<N> as N threads of one JVM
+// the image is scattered once as row bands; between the ops the ranks only exchange the halo rows
+// (kernel radius) with their neighbours, and ROOT gathers the bands once at the end
+// all communication goes through a Communicator, mpi.* is only used in MpjCommunicator
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class MpjImageProcessor {
 
     static final int ROOT = 0;
 
-    // --- map op name <-> small code (broadcast ints, like in examples) ---
-    private static int opCode(String s) {
-        s = s.toLowerCase().trim();
-        if (s.equals("mirror"))  return 1;
-        if (s.equals("blur"))    return 2;
-        if (s.equals("sharpen")) return 3;
-        if (s.equals("edge"))    return 4;
-        return 0; // identity
-    }
-    private static float[] kernelFor(int code) {
-        switch (code) {
-            case 2: return Universal.blurKernel;
-            case 3: return Universal.sharpenKernel;
-            case 4: return Universal.edgeKernel;
-            default: return Universal.identityKernel;
-        }
-    }
+    // in folder mode, files smaller than this (in bytes) are handed out whole to idle ranks,
+    // bigger ones are split over all ranks (--huge=<MB>)
+    static final long HUGE_FILE = 64L << 20;
+    // small files are handed out in groups of up to this many bytes / files, so tiny files don't
+    // cost a round trip to ROOT each
+    static final long GROUP_BYTES = 8L << 20;
+    static final int MAX_GROUP = 64;
+    private static final int TAG_READY = 10, TAG_WORK = 11;
 
-    // --- helpers (compute rows [r0,r1)) ---
-    private static void applyKernelRows(PpmImage in, float[] outFull, int kSize, float[] ker, int r0, int r1) {
-        int W = in.width, H = in.height, C = in.channels;
+    // --- helpers (compute rows [r0,r1)); src and dst hold image row i at (i - base) * W * C ---
+    // the kernel layer runs separable kernels (blur) as two 1D passes
+    private static void applyKernelRows(float[] src, float[] dst, int base, int W, int H, int C, Kernel ker,
+                                        int r0, int r1) {
+        Convolution.apply(new Convolution.Window(src, base, 0, W), new Convolution.Window(dst, base, 0, W),
+                W, H, C, ker, r0, r1, 0, W);
+    }
+    private static void mirrorRows(float[] src, float[] dst, int base, int W, int C, int r0, int r1) {
         for (int i = r0; i < r1; i++) {
+            int row = (i - base) * W * C;
             for (int j = 0; j < W; j++) {
-                for (int c = 0; c < C; c++) {
-                    float sum = 0f;
-                    for (int ii = 0; ii < kSize; ii++) {
-                        int ik = i - kSize/2 + ii;
-                        if (ik < 0) ik = 0; else if (ik >= H) ik = H - 1;
-                        for (int jj = 0; jj < kSize; jj++) {
-                            int jk = j - kSize/2 + jj;
-                            if (jk < 0) jk = 0; else if (jk >= W) jk = W - 1;
-                            int idx = (ik * W + jk) * C + c;
-                            int kk  = (kSize - 1 - ii) * kSize + (kSize - 1 - jj);
-                            sum += in.data[idx] * ker[kk];
-                        }
-                    }
-                    outFull[(i * W + j) * C + c] = sum;
-                }
+                for (int c = 0; c < C; c++) dst[row + j * C + c] = src[row + (W - 1 - j) * C + c];
             }
         }
     }
-    private static void mirrorRows(PpmImage in, float[] outFull, int r0, int r1) {
-        int W = in.width, C = in.channels;
-        for (int i = r0; i < r1; i++) {
-            for (int j = 0; j < W; j++) {
-                int dx = W - 1 - j;
-                int sIdx = (i * W + j)  * C;
-                int dIdx = (i * W + dx) * C;
-                for (int c = 0; c < C; c++) outFull[dIdx + c] = in.data[sIdx + c];
-            }
+
+    // first row of every rank's band (size + 1 entries, the last is H): every active rank gets
+    // maxHalo rows, the rest is split in proportion to the ranks' speed (rows per second measured on
+    // the previous files; 0 = not measured yet, counted as the average)
+    static int[] partition(int H, double[] speed, int active, int maxHalo) {
+        int size = speed.length;
+        double known = 0;
+        int nKnown = 0;
+        for (int p = 0; p < active; p++) if (speed[p] > 0) { known += speed[p]; nKnown++; }
+        double avg = (nKnown == 0) ? 1 : known / nKnown;
+        double sum = 0;
+        for (int p = 0; p < active; p++) sum += (speed[p] > 0) ? speed[p] : avg;
+
+        int[] start = new int[size + 1];
+        int spare = H - active * maxHalo;
+        double acc = 0;
+        for (int p = 0; p < size; p++) {
+            start[p] = (p < active) ? p * maxHalo + (int) Math.round(spare * acc / sum) : H;
+            if (p < active) acc += (speed[p] > 0) ? speed[p] : avg;
         }
+        start[size] = H;
+        return start;
     }
 
-    private static int[] rowRangeEven(int H, int rank, int size) {
-        int rowsPer = H / size;
-        int start = rank * rowsPer;
-        int end   = start + rowsPer;
-        return new int[]{start, end};
+    // fills the h rows above and below the band [r0,r1) with the neighbours' rows (Sendrecv, so a
+    // chain of ranks can't deadlock); the bands at the top and bottom of the image have no neighbour
+    // there, the kernel clamps to the image instead. Returns the bytes this rank sent
+    private static long exchangeHalo(Communicator comm, WireFormat wire, float[] buf, int base, int rowLen, int C,
+                                     int r0, int r1, int h, int active) throws Exception {
+        int rank = comm.rank();
+        int up = (rank > 0) ? rank - 1 : -1, down = (rank + 1 < active) ? rank + 1 : -1;
+        int n = h * rowLen;
+        // my first rows go up, the rows below my band come from the rank below
+        long sent = shift(comm, wire, buf, (r0 - base) * rowLen, up, (r1 - base) * rowLen, down, n, C, 1);
+        // my last rows go down, the rows above my band come from the rank above
+        sent += shift(comm, wire, buf, (r1 - h - base) * rowLen, down, (r0 - h - base) * rowLen, up, n, C, 2);
+        return sent;
+    }
+
+    // n values of buf at sendOff to dest, n values from source to recvOff (-1: no rank there)
+    private static long shift(Communicator comm, WireFormat wire, float[] buf, int sendOff, int dest, int recvOff,
+                              int source, int n, int C, int tag) throws Exception {
+        if (wire.haloBits == 0) {
+            if (dest >= 0 && source >= 0) comm.sendrecv(buf, sendOff, n, dest, tag, buf, recvOff, n, source, tag);
+            else if (dest >= 0) comm.send(buf, sendOff, n, dest, tag);
+            else if (source >= 0) comm.recv(buf, recvOff, n, source, tag);
+            return (dest >= 0) ? 4L * n : 0;
+        }
+        byte[] out = (dest >= 0) ? BufferPool.bytesAtLeast(wire.maxHalo(n)) : null;
+        byte[] in = (source >= 0) ? BufferPool.bytesAtLeast(wire.maxHalo(n)) : null;
+        int len = (dest >= 0) ? wire.codeHalo(buf, sendOff, n, C, out) : 0;
+        if (dest >= 0 && source >= 0) comm.sendrecv(out, 0, len, dest, tag, in, 0, in.length, source, tag);
+        else if (dest >= 0) comm.send(out, 0, len, dest, tag);
+        else if (source >= 0) comm.recv(in, 0, in.length, source, tag);
+        if (source >= 0) wire.decodeHalo(in, buf, recvOff, n, C);
+        BufferPool.release(out);
+        BufferPool.release(in);
+        return len;
     }
 
     public static void main(String[] args) throws Exception {
-        MPI.Init(args); // Example1 style init/finalize.  // ref: Example1Init
-        int rank = MPI.COMM_WORLD.Rank();
-        int size = MPI.COMM_WORLD.Size();
+        // --metrics=<file> writes a per-stage report (see Metrics), one file per MPJ rank
+        // --local=<N> runs N ranks as threads of this JVM instead of under mpjrun
+        // --huge=<MB> and --threads=<N> (threads per rank for the files handed out whole)
+        // --wire=<samples|8|16|float> and --rle: how pixels are sent between ranks (see WireFormat)
+        String metricsPath = null, wireName = "samples";
+        boolean rle = false;
+        int local = 0, threads = 1;
+        long hugeFile = HUGE_FILE;
+        List<String> rest = new ArrayList<>();
+        for (String a : args) {
+            if (a.startsWith("--metrics=")) metricsPath = a.substring("--metrics=".length());
+            else if (a.startsWith("--local=")) local = Integer.parseInt(a.substring("--local=".length()));
+            else if (a.startsWith("--huge=")) hugeFile = Long.parseLong(a.substring("--huge=".length())) << 20;
+            else if (a.startsWith("--threads=")) threads = Integer.parseInt(a.substring("--threads=".length()));
+            else if (a.startsWith("--wire=")) wireName = a.substring("--wire=".length());
+            else if (a.equals("--rle")) rle = true;
+            else rest.add(a);
+        }
+        String[] params = rest.toArray(new String[0]);
+        long huge = hugeFile;
+        int nThreads = threads;
+        WireFormat wire = WireFormat.parse(wireName, rle);
+
+        if (local > 0) {
+            Metrics.open(metricsPath, -1); // one report, the rank is in every line
+            try {
+                LocalCommunicator.run(local, comm -> run(comm, params, huge, nThreads, wire));
+            } finally {
+                Metrics.close();
+            }
+            return;
+        }
 
-        if (rank == ROOT && args.length < 3) {
-            System.out.println("Usage: mpjrun -np <P> MpjImageProcessor <input file/folder> <output folder> <ops>");
-            MPI.Finalize();
+        // loaded by name, so the program builds and runs in local mode without mpj.jar
+        Communicator comm = (Communicator) Class.forName("MpjCommunicator")
+                .getDeclaredMethod("init", String[].class).invoke(null, (Object) args);
+        try {
+            Metrics.open(metricsPath, comm.rank());
+            run(comm, params, huge, nThreads, wire);
+        } finally {
+            Metrics.close();
+            comm.close();
+        }
+    }
+
+    // what every rank runs
+    static void run(Communicator comm, String[] args, long hugeFile, int threads, WireFormat wire)
+            throws Exception {
+        int rank = comm.rank();
+        int size = comm.size();
+
+        if (args.length < 3) {
+            if (rank == ROOT) System.out.println("Usage: mpjrun -np <P> MpjImageProcessor <input file/folder> <output folder> <ops> [--metrics=<file>] [--huge=<MB>] [--threads=<N>] [--wire=<samples|8|16|float>] [--rle]"
+                    + " or: java MpjImageProcessor <input file/folder> <output folder> <ops> --local=<N>");
             return;
         }
 
@@ -91,143 +168,397 @@ public class MpjImageProcessor {
             outDir.mkdirs();
             File in = new File(inPath);
             if (in.isDirectory()) {
-                File[] fs = in.listFiles((d, n) -> n.toLowerCase().endsWith(".ppm"));
+                File[] fs = in.listFiles((d, n) -> PpmCodec.isImageFile(n));
                 if (fs != null) for (File f : fs) list.add(f.getAbsolutePath());
             } else {
                 list.add(in.getAbsolutePath());
             }
         }
 
-        // Broadcast number of files (Example2Broadcast pattern).  // ref: Example2Broadcast
-        int[] nFilesArr = new int[]{rank == ROOT ? list.size() : 0};
-        MPI.COMM_WORLD.Bcast(nFilesArr, 0, 1, MPI.INT, ROOT);
-        int nFiles = nFilesArr[0];
-
-        // Broadcast ops as small codes (also Example2 style bcast)
-        String[] toks = (rank == ROOT) ? opsStr.split("[,+]") : new String[0];
-        int[] opCodes = new int[(rank == ROOT) ? toks.length : 1];
-        if (rank == ROOT) for (int i = 0; i < toks.length; i++) opCodes[i] = opCode(toks[i]);
-        int[] nOpsArr = new int[]{(rank == ROOT) ? opCodes.length : 0};
-        MPI.COMM_WORLD.Bcast(nOpsArr, 0, 1, MPI.INT, ROOT);
+        // ROOT plans the chain (see OpPlanner) and broadcasts the planned kernels as their sizes
+        // (0 = mirror) and values, so folded kernels and @file kernels work on every rank
+        Kernel[] planned = new Kernel[0];
+        String[] labels = new String[0];
+        if (rank == ROOT) {
+            OpPlanner.Plan plan = OpPlanner.plan(opsStr.split("[,+]"));
+            System.out.println("Plan: " + plan.describe());
+            planned = plan.ops;
+            labels = plan.labels;
+        }
+        int[] nOpsArr = new int[]{planned.length};
+        comm.bcast(nOpsArr, 0, 1, ROOT);
         int nOps = nOpsArr[0];
-        if (rank != ROOT) opCodes = new int[nOps];
-        MPI.COMM_WORLD.Bcast(opCodes, 0, nOps, MPI.INT, ROOT);
+        int[] kSizes = new int[nOps + 1]; // last entry: total number of values
+        if (rank == ROOT) {
+            for (int i = 0; i < nOps; i++) {
+                kSizes[i] = (planned[i] == null) ? 0 : planned[i].size;
+                kSizes[nOps] += kSizes[i] * kSizes[i];
+            }
+        }
+        comm.bcast(kSizes, 0, nOps + 1, ROOT);
+        float[] kValues = new float[kSizes[nOps]];
+        if (rank == ROOT) {
+            for (int i = 0, off = 0; i < nOps; i++) {
+                if (planned[i] == null) continue;
+                System.arraycopy(planned[i].values, 0, kValues, off, planned[i].values.length);
+                off += planned[i].values.length;
+            }
+        }
+        if (kValues.length > 0) comm.bcast(kValues, 0, kValues.length, ROOT);
+        // every rank (ROOT too) rebuilds the kernels from the same values, so they all compute alike
+        Kernel[] kernels = new Kernel[nOps];
+        for (int i = 0, off = 0; i < nOps; i++) {
+            int n = kSizes[i] * kSizes[i];
+            if (n > 0) kernels[i] = new Kernel(Arrays.copyOfRange(kValues, off, off + n));
+            off += n;
+        }
+
+        int maxHalo = 0;
+        for (Kernel k : kernels) if (k != null) maxHalo = Math.max(maxHalo, k.radius());
+
+        // ROOT decides which files are handed out whole and which are split over all ranks:
+        // with more than one rank and more than one file, files smaller than hugeFile are farmed
+        List<String> farmed = new ArrayList<>(), split = new ArrayList<>();
+        for (String path : list) {
+            if (size > 1 && list.size() > 1 && new File(path).length() < hugeFile) farmed.add(path);
+            else split.add(path);
+        }
+        String[] farmedFiles = bcastStrings(comm, farmed);
+        String[] splitFiles = bcastStrings(comm, split);
+        boolean single = farmedFiles.length + splitFiles.length == 1;
 
         long t0All = System.currentTimeMillis();
 
-        for (int fi = 0; fi < nFiles; fi++) {
+        if (farmedFiles.length > 0) {
+            FusedChain chain = new FusedChain(Arrays.asList(kernels));
+            farm(comm, farmedFiles, outDirPath, chain, threads);
+        }
 
-            // ROOT loads image and broadcasts header + pixels
-            PpmImage curr = new PpmImage();
-            int[] hdr = new int[4]; // W,H,C,depth
-            if (rank == ROOT) {
-                curr.ppmImport(list.get(fi));
-                hdr[0] = curr.width; hdr[1] = curr.height; hdr[2] = curr.channels; hdr[3] = curr.depth;
-            }
-            MPI.COMM_WORLD.Bcast(hdr, 0, 4, MPI.INT, ROOT);           // header
-            if (rank != ROOT) curr = new PpmImage(hdr[0], hdr[1], hdr[2], hdr[3]);
-            MPI.COMM_WORLD.Bcast(curr.data, 0, curr.data.length, MPI.FLOAT, ROOT); // pixels
-
-            // Even split for Gather (like Example4Gather). Remainder handled on ROOT.
-            int rowsPer = curr.height / size;
-            int[] rr = rowRangeEven(curr.height, rank, size);
-            int r0 = rr[0], r1 = rr[1];
-            int blockCount = Math.max(0, (r1 - r0) * curr.width * curr.channels);
-
-            for (int oi = 0; oi < nOps; oi++) {
-                int code = opCodes[oi];
-                float[] outFullLocal = new float[curr.data.length];
-
-                long tStart = System.currentTimeMillis();
-
-                if (r1 > r0) {
-                    if (code == 1) {
-                        mirrorRows(curr, outFullLocal, r0, r1);
-                    } else {
-                        float[] ker = kernelFor(code);
-                        int kSize = (int)Math.sqrt(ker.length);
-                        applyKernelRows(curr, outFullLocal, kSize, ker, r0, r1);
-                    }
-                }
+        // rows per second of every rank, measured on each split file and used for the next one (ROOT only)
+        double[] speed = new double[size];
+        for (String path : splitFiles) {
+            String outName = single ? ("output_mpi" + size + ".ppm") : ("output_" + new File(path).getName());
+            processBands(comm, path, new File(outDirPath, outName), kernels, labels, maxHalo, speed, wire);
+        }
+
+        if (rank == ROOT) {
+            long t1All = System.currentTimeMillis();
+            System.out.printf("MPI total elapsed: %.3f s%n", (t1All - t0All) / 1000.0);
+            System.out.println(BufferPool.report());
+        }
+    }
 
-                // Prepare my contiguous chunk for Gather (equal sizes)
-                float[] sendChunk = new float[blockCount];
-                if (blockCount > 0) {
-                    System.arraycopy(outFullLocal, r0 * curr.width * curr.channels, sendChunk, 0, blockCount);
+    // master/worker farming of whole files: ROOT hands out groups of files to whichever rank asks
+    // for work, the ranks read and write the files themselves (shared filesystem) and ask again
+    // when they are done. Groups get smaller towards the end, so all ranks finish at about the
+    // same time. ROOT only hands out work, so start one more rank than there are cores for it
+    private static void farm(Communicator comm, String[] files, String outDir, FusedChain chain, int threads)
+            throws Exception {
+        int[] done = new int[1];
+        int[] group = new int[MAX_GROUP + 1]; // count, file indexes
+        if (comm.rank() == ROOT) {
+            int next = 0, working = comm.size() - 1, total = 0;
+            while (working > 0) {
+                int worker = comm.recv(done, 0, 1, Communicator.ANY_SOURCE, TAG_READY);
+                total += done[0];
+                int limit = Math.max(1, Math.min(MAX_GROUP, (files.length - next) / (2 * (comm.size() - 1))));
+                int n = 0;
+                long bytes = 0;
+                while (next < files.length && n < limit && (n == 0 || bytes < GROUP_BYTES)) {
+                    bytes += new File(files[next]).length();
+                    group[1 + n++] = next++;
                 }
+                group[0] = n;
+                comm.send(group, 0, n + 1, worker, TAG_WORK);
+                if (n == 0) working--; // nothing left, that rank stops
+            }
+            System.out.println("Farmed " + total + " files to " + (comm.size() - 1) + " ranks");
+            return;
+        }
+        while (true) {
+            comm.send(done, 0, 1, ROOT, TAG_READY); // files finished since the last request
+            comm.recv(group, 0, group.length, ROOT, TAG_WORK);
+            if (group[0] == 0) return;
+            done[0] = 0;
+            for (int i = 1; i <= group[0]; i++) {
+                File in = new File(files[group[i]]);
+                if (processWhole(in, new File(outDir, "output_" + in.getName()), chain, threads, comm.rank())) done[0]++;
+            }
+        }
+    }
 
-                // Gather equal chunks on ROOT (Example4Gather style).  // ref: Example4Gather
-                float[] gathered = null;
-                if (rank == ROOT) gathered = new float[size * blockCount];
-                MPI.COMM_WORLD.Gather(sendChunk, 0, blockCount, MPI.FLOAT,
-                                      gathered,  0, blockCount, MPI.FLOAT, ROOT);
+    // one file on this rank alone; false if it could not be read
+    private static boolean processWhole(File in, File outFile, FusedChain chain, int threads, int rank) {
+        Metrics.Run run = new Metrics.Run(in.getAbsolutePath(), rank);
+        Metrics.Timer t = new Metrics.Timer();
+        PpmImage img = new PpmImage();
+        img.ppmImport(in.getAbsolutePath(), threads);
+        run.stage("decode", t, in.length(), 0);
+        if (img.width == 0) return false;
+        run.pixels = (long) img.width * img.height;
+        t = new Metrics.Timer();
+        PpmImage result = ImageProcessor.process(img, chain, threads);
+        run.stage("compute", t, 0, 0);
+        t = new Metrics.Timer();
+        result.ppmExport(outFile.getAbsolutePath(), threads);
+        run.stage("encode", t, 0, outFile.length());
+        run.done();
+        BufferPool.recycle(result);
+        BufferPool.recycle(img);
+        System.out.println("Saved " + outFile.getAbsolutePath() + " (rank " + rank + ")");
+        return true;
+    }
 
-                // ROOT builds the next full image (gathered part + leftover rows)
-                float[] nextData = null;
-                if (rank == ROOT) {
-                    nextData = new float[curr.data.length];
+    // ROOT's list on every rank, sent as one UTF-8 string
+    private static String[] bcastStrings(Communicator comm, List<String> list) throws Exception {
+        byte[] bytes = String.join("\n", list).getBytes(StandardCharsets.UTF_8);
+        int[] len = {(comm.rank() == ROOT) ? bytes.length : 0, list.size()};
+        comm.bcast(len, 0, 2, ROOT);
+        if (len[1] == 0) return new String[0];
+        if (comm.rank() != ROOT) bytes = new byte[len[0]];
+        if (len[0] > 0) comm.bcast(bytes, 0, len[0], ROOT);
+        return new String(bytes, StandardCharsets.UTF_8).split("\n", -1);
+    }
 
-                    // place gathered chunks
-                    for (int p = 0; p < size; p++) {
-                        int startRow = p * rowsPer;
-                        if (rowsPer == 0) break; // nothing to place
-                        int offFull = startRow * curr.width * curr.channels;
-                        int offG    = p * blockCount;
-                        System.arraycopy(gathered, offG, nextData, offFull, blockCount);
-                    }
+    // one image split over all ranks as row bands (ROOT reads and writes it)
+    // the bands are sized by speed (see partition); afterwards every rank reports its rows and busy
+    // time and ROOT updates speed. ROOT's reading and writing count as busy time, so it gets fewer rows
+    private static void processBands(Communicator comm, String path, File outFile, Kernel[] kernels,
+                                     String[] labels, int maxHalo, double[] speed, WireFormat wire)
+            throws Exception {
+        int rank = comm.rank(), size = comm.size(), nOps = kernels.length;
+        long busy = 0; // ns spent computing (and, on ROOT, reading and writing)
+        // ROOT loads the image (as floats, or as the file's samples) and broadcasts only the header;
+        // a header of width 0 means ROOT could not read the file, and every rank skips it
+        Metrics.Run run = new Metrics.Run(path, rank);
+        PpmImage img = new PpmImage();
+        byte[] samples = null;
+        int[] hdr = new int[4]; // W,H,C,depth
+        if (rank == ROOT) {
+            Metrics.Timer t = new Metrics.Timer();
+            boolean read = false;
+            try {
+                if (wire.floats) PpmCodec.read(path, img);
+                else samples = PpmCodec.readSamples(path, img);
+                read = true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.println("Could not open file " + path);
+            }
+            busy += System.nanoTime() - t.t0;
+            run.stage("decode", t, new File(path).length(), 0);
+            if (read) {
+                hdr[0] = img.width; hdr[1] = img.height; hdr[2] = img.channels; hdr[3] = img.depth;
+            } else {
+                BufferPool.recycle(img); // a read that failed halfway may have taken a buffer
+            }
+        }
+        comm.bcast(hdr, 0, 4, ROOT);
+        if (hdr[0] == 0) {
+            if (rank == ROOT) System.out.println("Skipping " + path);
+            return;
+        }
+        int W = hdr[0], H = hdr[1], C = hdr[2], depth = hdr[3], rowLen = W * C;
+        int bps = (depth > 255) ? 2 : 1;
+        run.pixels = (long) W * H;
 
-                    // leftover rows (if H not divisible by size) computed on ROOT
-                    int leftoverStart = size * rowsPer;
-                    if (leftoverStart < curr.height) {
-                        if (code == 1) {
-                            mirrorRows(curr, nextData, leftoverStart, curr.height);
-                        } else {
-                            float[] ker = kernelFor(code);
-                            int kSize = (int)Math.sqrt(ker.length);
-                            applyKernelRows(curr, nextData, kSize, ker, leftoverStart, curr.height);
-                        }
-                    }
+        // every rank owns a band of rows; a band has at least maxHalo rows, so the halo of a
+        // band always comes from its direct neighbours (small images use fewer ranks)
+        int active = Math.max(1, Math.min(size, (maxHalo == 0) ? H : H / maxHalo));
+        int[] start = (rank == ROOT) ? partition(H, speed, active, maxHalo) : new int[size + 1];
+        comm.bcast(start, 0, size + 1, ROOT);
+        if (rank == ROOT && size > 1) {
+            int[] rows = new int[size];
+            for (int p = 0; p < size; p++) rows[p] = start[p + 1] - start[p];
+            System.out.println("Rows per rank: " + Arrays.toString(rows));
+        }
+        int[] counts = new int[size], displs = new int[size];
+        for (int p = 0; p < size; p++) {
+            displs[p] = start[p] * rowLen;
+            counts[p] = (start[p + 1] - start[p]) * rowLen;
+        }
+        int r0 = start[rank], r1 = start[rank + 1];
+
+        // two band buffers in turn, each with room for maxHalo rows above and below the band;
+        // row i of the image is at (i - base) * rowLen. They come from BufferPool, rounded up so the
+        // next file reuses them even if its partition differs a little
+        int base = Math.max(0, r0 - maxHalo);
+        int bufRows = Math.min(H, r1 + maxHalo) - base;
+        float[] cur = BufferPool.floatsAtLeast(bufRows * rowLen), next = BufferPool.floatsAtLeast(bufRows * rowLen);
+
+        // scatter the bands once; every rank decodes its band into cur
+        Metrics.Timer tb = new Metrics.Timer();
+        int mine = (r0 - base) * rowLen, n = counts[rank];
+        long sent = 0, asFloats = 0; // bytes this rank sent to the others, and what that is as floats
+        if (rank == ROOT) asFloats = 4L * (H * rowLen - n);
+        if (wire.floats) {
+            float[] all = (rank == ROOT) ? img.data : new float[0];
+            comm.scatterv(all, counts, displs, cur, mine, ROOT);
+            img.data = null; // ROOT doesn't need the full image until the end
+            sent = asFloats;
+        } else {
+            int[] msgCounts = new int[size], msgDispls = new int[size];
+            for (int p = 0; p < size; p++) {
+                msgCounts[p] = counts[p] * bps;
+                msgDispls[p] = displs[p] * bps;
+            }
+            byte[] msgs = samples;
+            if (rank == ROOT && wire.rle) {
+                int room = 0;
+                for (int p = 0; p < size; p++) room += wire.maxMessage(msgCounts[p]);
+                msgs = BufferPool.bytesAtLeast(room);
+                for (int p = 0, off = 0; p < size; p++) {
+                    msgCounts[p] = wire.code(samples, msgDispls[p], msgCounts[p], C * bps, msgs, off);
+                    msgDispls[p] = off;
+                    off += msgCounts[p];
                 }
+            }
+            if (wire.rle) comm.bcast(msgCounts, 0, size, ROOT);
+            if (rank == ROOT) {
+                for (int p = 0; p < size; p++) if (p != ROOT) sent += msgCounts[p];
+            }
+            byte[] msg = BufferPool.bytesAtLeast(msgCounts[rank]);
+            comm.scatterv((rank == ROOT) ? msgs : new byte[0], msgCounts, msgDispls, msg, 0, ROOT);
+            if (msgs != samples) BufferPool.release(msgs);
+            BufferPool.release(samples);
+            samples = null;
+            byte[] band = msg;
+            if (wire.rle) {
+                band = BufferPool.bytesAtLeast(n * bps);
+                wire.decode(msg, 0, band, 0, n * bps, C * bps);
+                BufferPool.release(msg);
+            }
+            PpmCodec.decode(ByteBuffer.wrap(band), 0, cur, mine, n, depth);
+            BufferPool.release(band);
+        }
+        run.stage("comm:scatter", tb, 0, sent);
 
-                // Broadcast the full result as the next input (Example2 style).  // ref: Example2Broadcast
-                if (rank != ROOT) nextData = new float[curr.data.length];
-                MPI.COMM_WORLD.Bcast(nextData, 0, nextData.length, MPI.FLOAT, ROOT);
-                curr.data = nextData;
+        for (int oi = 0; oi < nOps; oi++) {
+            Kernel ker = kernels[oi]; // null means mirror
+            long tStart = System.currentTimeMillis();
 
-                long tEnd = System.currentTimeMillis();
-                double localSecs = (tEnd - tStart) / 1000.0;
+            // bring the rows this op reads from the neighbours' bands
+            if (ker != null && ker.radius() > 0 && r1 > r0) {
+                Metrics.Timer tx = new Metrics.Timer();
+                long bytes = exchangeHalo(comm, wire, cur, base, rowLen, C, r0, r1, ker.radius(), active);
+                sent += bytes;
+                asFloats += 4L * ker.radius() * rowLen * (((rank > 0) ? 1 : 0) + ((rank + 1 < active) ? 1 : 0));
+                run.stage("comm:halo", tx, 0, bytes);
+            }
 
-                // Allreduce to get max time over ranks (Example8AllReduce idea).  // ref: Example8AllReduce
-                double[] send = new double[]{localSecs};
-                double[] recv = new double[1];
-                MPI.COMM_WORLD.Allreduce(send, 0, recv, 0, 1, MPI.DOUBLE, MPI.MAX);
-                if (rank == ROOT) {
-                    System.out.printf("Step %d (code=%d) max time: %.3f s%n", oi+1, code, recv[0]);
+            Metrics.Timer tOp = new Metrics.Timer();
+            if (r1 > r0) {
+                if (ker == null) {
+                    mirrorRows(cur, next, base, W, C, r0, r1);
+                } else {
+                    applyKernelRows(cur, next, base, W, H, C, ker, r0, r1);
                 }
             }
+            busy += System.nanoTime() - tOp.t0;
+            run.stage("op:" + ((ker == null) ? "mirror" : ker.size + "x" + ker.size), tOp, 0, 0);
+            float[] tmp = cur; cur = next; next = tmp;
+
+            long tEnd = System.currentTimeMillis();
+            double localSecs = (tEnd - tStart) / 1000.0;
 
-            // Save only on ROOT
+            // Allreduce to get max time over ranks (Example8AllReduce idea).  // ref: Example8AllReduce
+            double maxSecs = comm.allreduce(localSecs, Communicator.Op.MAX);
             if (rank == ROOT) {
-                if (rank == ROOT) {
-                 File inF = new File(list.get(fi));
-                    String outName = (nFiles == 1)
-                            ? ("output_mpi" + size + ".ppm")
-                            : ("output_" + inF.getName());
-
-                    PpmImage saveImg = new PpmImage(curr.width, curr.height, curr.channels, curr.depth);
-                    System.arraycopy(curr.data, 0, saveImg.data, 0, curr.data.length);
-
-                    File outFile = new File(outDirPath, outName);
-                    saveImg.ppmExport(outFile.getAbsolutePath());
-                    System.out.println("Saved " + outFile.getAbsolutePath());
-}
+                System.out.printf("Step %d (%s) max time: %.3f s%n", oi+1, labels[oi], maxSecs);
             }
         }
 
+        // gather the bands once, at the end; as samples, every rank quantizes its own band
+        Metrics.Timer tg = new Metrics.Timer();
+        long gathered = (rank == ROOT) ? 0 : (wire.floats ? 4L * n : 0);
+        PpmImage result = (rank == ROOT && wire.floats) ? new PpmImage(W, H, C, depth) : null;
+        if (result != null) result.format = img.format; // written like the input
+        if (rank != ROOT) asFloats += 4L * n;
+        if (wire.floats) {
+            float[] dst = (rank == ROOT) ? result.data : new float[0];
+            comm.gatherv(cur, mine, n, dst, counts, displs, ROOT);
+        } else {
+            byte[] band = BufferPool.bytesAtLeast(n * bps);
+            PpmCodec.encode(cur, mine, n, ByteBuffer.wrap(band), depth);
+            byte[] msg = band;
+            int len = n * bps;
+            if (wire.rle) {
+                msg = BufferPool.bytesAtLeast(wire.maxMessage(len));
+                len = wire.code(band, 0, n * bps, C * bps, msg, 0);
+                BufferPool.release(band);
+            }
+            int[] msgCounts = new int[size], msgDispls = new int[size];
+            if (wire.rle) {
+                int[] one = new int[size], at = new int[size];
+                for (int p = 0; p < size; p++) { one[p] = 1; at[p] = p; }
+                comm.gatherv(new int[]{len}, 0, 1, msgCounts, one, at, ROOT);
+            } else {
+                for (int p = 0; p < size; p++) msgCounts[p] = counts[p] * bps;
+            }
+            int total = 0;
+            for (int p = 0; p < size; p++) { msgDispls[p] = total; total += msgCounts[p]; }
+            // without --rle the gathered messages are exactly the file's samples
+            byte[] msgs = (rank == ROOT) ? (wire.rle ? BufferPool.bytesAtLeast(total) : BufferPool.bytes(total))
+                    : new byte[0];
+            comm.gatherv(msg, 0, len, msgs, msgCounts, msgDispls, ROOT);
+            BufferPool.release(msg);
+            if (rank == ROOT) {
+                samples = msgs;
+                if (wire.rle) {
+                    samples = BufferPool.bytes(H * rowLen * bps);
+                    for (int p = 0; p < size; p++) {
+                        wire.decode(msgs, msgDispls[p], samples, displs[p] * bps, counts[p] * bps, C * bps);
+                    }
+                    BufferPool.release(msgs);
+                }
+            } else {
+                gathered = len;
+            }
+        }
+        sent += gathered;
+        run.stage("comm:gather", tg, 0, gathered);
+
+        // Save only on ROOT
         if (rank == ROOT) {
-            long t1All = System.currentTimeMillis();
-            System.out.printf("MPI total elapsed: %.3f s%n", (t1All - t0All) / 1000.0);
+            Metrics.Timer t = new Metrics.Timer();
+            if (wire.floats) {
+                result.ppmExport(outFile.getAbsolutePath());
+            } else {
+                try {
+                    PpmCodec.writeSamples(outFile.getAbsolutePath(), img, samples);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.out.println("Could not open file" + outFile.getAbsolutePath());
+                }
+                BufferPool.release(samples);
+            }
+            BufferPool.recycle(result);
+            busy += System.nanoTime() - t.t0;
+            run.stage("encode", t, 0, outFile.length());
+            System.out.println("Saved " + outFile.getAbsolutePath());
+        }
+        run.done();
+        BufferPool.release(cur);
+        BufferPool.release(next);
+
+        double sentAll = comm.allreduce(sent, Communicator.Op.SUM);
+        double floatsAll = comm.allreduce(asFloats, Communicator.Op.SUM);
+        if (rank == ROOT && size > 1) {
+            System.out.printf("Sent between ranks: %.2f MB (%.2f MB as floats)%n", sentAll / 1e6, floatsAll / 1e6);
+        }
+
+        // rows and busy time of every rank to ROOT, which keeps a moving average of the speeds
+        double[] report = {r1 - r0, busy / 1e9};
+        double[] each = (rank == ROOT) ? new double[2 * size] : new double[0];
+        int[] two = new int[size], offs = new int[size];
+        for (int p = 0; p < size; p++) { two[p] = 2; offs[p] = 2 * p; }
+        comm.gatherv(report, 0, 2, each, two, offs, ROOT);
+        if (rank == ROOT) {
+            for (int p = 0; p < size; p++) {
+                if (each[2 * p] <= 0 || each[2 * p + 1] <= 0) continue;
+                double rate = each[2 * p] / each[2 * p + 1];
+                speed[p] = (speed[p] > 0) ? 0.5 * speed[p] + 0.5 * rate : rate;
+            }
         }
-        MPI.Finalize(); // Example1 finish.  // ref: Example1Init
     }
 }
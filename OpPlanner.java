@@ -0,0 +1,115 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+//turns the op string into the chain that is actually run
+//- identity kernels (and unknown names, which map to identity) are dropped
+//- mirrors are moved to the end of the chain: mirror followed by a kernel is the same as the
+//  left-right flipped kernel followed by mirror (the clamped border is symmetric, so only the
+//  order of the float additions changes), and two mirrors cancel
+//- with --fold, adjacent kernels are folded into one (their convolution) when the folded kernel is
+//  cheaper than running both. Away from the border this gives the same image; within the combined
+//  radius of the border the clamping is done once instead of twice, so those pixels change, by tens
+//  of levels for blurs and up to the full range for edge kernels. That's why it is off by default
+//  (compact mode never folds, as it rounds and clamps after every op)
+public class OpPlanner {
+
+    // the planned chain, with a readable name for every op
+    static final class Plan {
+        final Kernel[] ops; // null means mirror
+        final String[] labels;
+        final String source;
+        final double cost, sourceCost;
+
+        Plan(List<Kernel> ops, List<String> labels, String source, double sourceCost) {
+            this.ops = ops.toArray(new Kernel[0]);
+            this.labels = labels.toArray(new String[0]);
+            this.source = source;
+            this.sourceCost = sourceCost;
+            this.cost = cost(this.ops);
+        }
+
+        FusedChain chain() {
+            FusedChain chain = new FusedChain(Arrays.asList(ops));
+            chain.labels = labels;
+            return chain;
+        }
+
+        // e.g. "blur+mirror+blur -> (blur*blur')+mirror, 12.0 -> 10.0 multiply-adds per sample"
+        String describe() {
+            String plan = (labels.length == 0) ? "identity" : String.join("+", labels);
+            return source + " -> " + plan + ", " + sourceCost + " -> " + cost + " multiply-adds per sample";
+        }
+    }
+
+    static Plan plan(String[] names) {
+        return plan(names, false);
+    }
+
+    static Plan plan(String[] names, boolean fold) {
+        List<Kernel> ops = new ArrayList<>();
+        List<String> labels = new ArrayList<>();
+        List<String> source = new ArrayList<>();
+        List<Kernel> sourceOps = new ArrayList<>();
+        boolean mirrored = false;
+
+        for (String raw : names) {
+            String op = raw.trim();
+            if (op.isEmpty()) continue;
+            source.add(op);
+            if (op.equalsIgnoreCase("mirror")) {
+                sourceOps.add(null);
+                mirrored = !mirrored;
+                continue;
+            }
+            Kernel k = Universal.getKernel(op);
+            sourceOps.add(k);
+            if (k.isIdentity()) continue;
+            // the mirrors seen so far are moved past this kernel
+            ops.add(mirrored ? k.flipHorizontal() : k);
+            labels.add(mirrored ? op + "'" : op);
+        }
+
+        if (fold) {
+            for (int i = 0; i + 1 < ops.size(); ) {
+                Kernel a = ops.get(i), b = ops.get(i + 1);
+                Kernel ab = a.then(b);
+                if (cost(ab) < cost(a) + cost(b)) {
+                    ops.set(i, ab);
+                    ops.remove(i + 1);
+                    labels.set(i, "(" + strip(labels.get(i)) + "*" + strip(labels.remove(i + 1)) + ")");
+                } else {
+                    i++;
+                }
+            }
+        }
+
+        if (mirrored) {
+            ops.add(null);
+            labels.add("mirror");
+        }
+        return new Plan(ops, labels, String.join("+", source), cost(sourceOps.toArray(new Kernel[0])));
+    }
+
+    // estimated multiply-adds per output sample of one kernel, the way the fused chain runs it
+    // (the cheaper of the direct/separable code and FFT on a tile)
+    static double cost(Kernel k) {
+        if (k == null) return 0;
+        double c = k.cost();
+        int rows = FusedChain.TILE_ROWS, cols = FusedChain.TILE_COLS;
+        if (FftConvolution.cheaper(k, rows, cols)) {
+            c = FftConvolution.cost(FftConvolution.blockSize(k.size, rows, cols), k.size, rows, cols);
+        }
+        return c;
+    }
+
+    static double cost(Kernel[] ops) {
+        double c = 0;
+        for (Kernel k : ops) c += cost(k);
+        return c;
+    }
+
+    private static String strip(String label) {
+        return label.startsWith("(") ? label.substring(1, label.length() - 1) : label;
+    }
+}
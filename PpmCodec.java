@@ -0,0 +1,574 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+//reads and writes Netpbm PPM/PGM files through a FileChannel: binary P6/P5 and plain (ASCII) P3/P2,
+//8-bit or 16-bit (depth above 255, big-endian in the binary formats)
+//the header is parsed from one buffered read, the pixel payload is memory-mapped (or read with a
+//loop that handles short reads, for small files) and decoded straight into the image buffer.
+//plain samples are parsed a buffer at a time by a byte loop (AsciiReader) into the same layout as
+//binary ones, so everything after reading is shared.
+//writing encodes the samples in chunks into a direct buffer and sends header + chunk with one
+//gathering write, so no second full size byte[] is created.
+//converting samples is split over the shared pool (CONVERT_BAND samples per task): decoding looks
+//every sample up in a table of the floats of its depth, encoding rounds up and clamps in int
+//arithmetic without a branch per sample (see quantize); the results are bit for bit those of
+//ceil(clamp(x, 0, 1) * depth). An image is written in the format it
+//was read from (Image.format), so plain stays plain and 16-bit stays 16-bit
+class PpmCodec {
+
+    // payloads smaller than this are read into a heap buffer, mapping them costs more than it saves
+    static final int MAP_THRESHOLD = 1 << 20;
+    // size of the direct buffer used for writing
+    static final int CHUNK = 1 << 20;
+
+    // samples converted by one task of the pool
+    static final int CONVERT_BAND = 1 << 16;
+
+    private static final ThreadLocal<ByteBuffer> WRITE_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(CHUNK));
+    // decode tables by depth
+    private static final Map<Integer, float[]> TABLES = new ConcurrentHashMap<>();
+
+    // what the header says, and where the samples start
+    static final class Header {
+        int width, height, channels, depth;
+        int format; // the digit of the magic number: 2, 3, 5 or 6
+        long dataOffset;
+
+        int bytesPerSample() {
+            return (depth > 255) ? 2 : 1;
+        }
+
+        // the samples in binary form (for plain files: what AsciiReader makes of them)
+        long payloadSize() {
+            return (long) width * height * channels * bytesPerSample();
+        }
+
+        boolean plain() {
+            return PpmCodec.plain(format);
+        }
+
+        // whole-image reads hold the samples in one array: the sample count and the payload must fit
+        // in an int (streaming mode only needs a row to fit, which readHeader checks)
+        void checkFits() throws IOException {
+            if ((long) width * height * channels > Integer.MAX_VALUE || payloadSize() > Integer.MAX_VALUE) {
+                throw new IOException("Image too big to read whole: " + width + "x" + height + "x" + channels
+                        + " samples of " + bytesPerSample() + " bytes (use --stream)");
+            }
+        }
+    }
+
+    // a file's header and samples, read once: ResultCache hashes them and on a miss they are decoded
+    // from here instead of reading the file again. Release them when done
+    static final class Raw {
+        final Header header;
+        final ByteBuffer payload;
+
+        Raw(Header header, ByteBuffer payload) {
+            this.header = header;
+            this.payload = payload;
+        }
+
+        void release() {
+            if (payload.hasArray()) BufferPool.release(payload.array());
+        }
+    }
+
+    // the files the folder modes pick up: .ppm, .pgm and .pnm (any of the four formats)
+    static boolean isImageFile(String name) {
+        String n = name.toLowerCase();
+        return n.endsWith(".ppm") || n.endsWith(".pgm") || n.endsWith(".pnm");
+    }
+
+    // P2 and P3 have their samples as decimal text
+    static boolean plain(int format) {
+        return format == 2 || format == 3;
+    }
+
+    static void read(String filename, PpmImage img) throws IOException {
+        read(filename, img, 1);
+    }
+
+    // same, the samples decoded on numThreads threads of the shared pool
+    static void read(String filename, PpmImage img, int numThreads) throws IOException {
+        Raw raw = readRaw(filename);
+        try {
+            decode(raw, img, numThreads);
+        } finally {
+            raw.release();
+        }
+    }
+
+    // header and samples of filename, not decoded yet (a big file stays mapped)
+    static Raw readRaw(String filename) throws IOException {
+        try (FileChannel ch = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            Header h = readHeader(ch);
+            return new Raw(h, payload(ch, h));
+        }
+    }
+
+    static void decode(Raw raw, PpmImage img, int numThreads) {
+        Header h = raw.header;
+        copyHeader(h, img);
+        img.data = BufferPool.floats(h.width * h.height * h.channels);
+        decode(raw.payload, 0, img.data, 0, img.data.length, h.depth, numThreads);
+    }
+
+    static void decode(Raw raw, CompactImage img) {
+        Header h = raw.header;
+        int n = h.width * h.height * h.channels;
+        copyHeader(h, img);
+        if (h.bytesPerSample() == 1) {
+            img.bytes = BufferPool.bytes(n);
+            img.shorts = null;
+            raw.payload.duplicate().get(img.bytes, 0, n);
+        } else {
+            img.shorts = BufferPool.shorts(n);
+            img.bytes = null;
+            raw.payload.duplicate().asShortBuffer().get(img.shorts);
+        }
+    }
+
+    // n samples from buf (starting at byte index pos) to floats in [0,1]
+    static void decode(ByteBuffer buf, int pos, float[] dst, int off, int n, int depth) {
+        float[] table = table(depth);
+        if (buf.hasArray()) {
+            byte[] a = buf.array();
+            int p = buf.arrayOffset() + pos;
+            if (depth <= 255) {
+                for (int i = 0; i < n; i++) dst[off + i] = table[a[p + i] & 0xFF];
+            } else {
+                for (int i = 0; i < n; i++) dst[off + i] = table[((a[p + 2 * i] & 0xFF) << 8) | (a[p + 2 * i + 1] & 0xFF)];
+            }
+        } else if (depth <= 255) {
+            for (int i = 0; i < n; i++) dst[off + i] = table[buf.get(pos + i) & 0xFF];
+        } else {
+            for (int i = 0; i < n; i++) dst[off + i] = table[buf.getShort(pos + 2 * i) & 0xFFFF];
+        }
+    }
+
+    // same in bands on the pool (absolute gets, so the bands can share buf)
+    static void decode(ByteBuffer buf, int pos, float[] dst, int off, int n, int depth, int numThreads) {
+        int bps = (depth > 255) ? 2 : 1;
+        Worker.forEachBand(n, CONVERT_BAND, numThreads, (i0, i1) -> decode(buf, pos + i0 * bps, dst, off + i0, i1 - i0, depth));
+    }
+
+    // the float of every sample value (all 256 or 65536, so a sample above depth still decodes as before)
+    static float[] table(int depth) {
+        return TABLES.computeIfAbsent(depth, d -> {
+            float scale = 1.0f / ((float) d);
+            float[] t = new float[(d <= 255) ? 256 : 65536];
+            for (int v = 0; v < t.length; v++) t[v] = (float) v * scale;
+            return t;
+        });
+    }
+
+    // n floats to samples, appended to buf (the buffer must have room for them)
+    static void encode(float[] src, int off, int n, ByteBuffer buf, int depth) {
+        int bps = (depth > 255) ? 2 : 1;
+        if (buf.hasArray()) {
+            encode(src, off, n, buf.array(), buf.arrayOffset() + buf.position(), depth);
+            buf.position(buf.position() + n * bps);
+            return;
+        }
+        for (int i = off; i < off + n; i++) {
+            if (bps == 1) buf.put((byte) quantize(src[i], depth));
+            else buf.putShort((short) quantize(src[i], depth));
+        }
+    }
+
+    // same into dst[dstOff] (2 big-endian bytes per sample above depth 255)
+    static void encode(float[] src, int off, int n, byte[] dst, int dstOff, int depth) {
+        if (depth <= 255) {
+            for (int i = 0; i < n; i++) dst[dstOff + i] = (byte) quantize(src[off + i], depth);
+        } else {
+            for (int i = 0; i < n; i++) {
+                int x = quantize(src[off + i], depth);
+                dst[dstOff + 2 * i] = (byte) (x >> 8);
+                dst[dstOff + 2 * i + 1] = (byte) x;
+            }
+        }
+    }
+
+    // same in bands on the pool
+    static void encode(float[] src, int off, int n, byte[] dst, int dstOff, int depth, int numThreads) {
+        int bps = (depth > 255) ? 2 : 1;
+        Worker.forEachBand(n, CONVERT_BAND, numThreads, (i0, i1) -> encode(src, off + i0, i1 - i0, dst, dstOff + i0 * bps, depth));
+    }
+
+    // ceil(clamp(v, 0, 1) * depth), without float min/max (slow, they handle NaN and -0) or a branch:
+    // t is y rounded towards zero (saturated for huge y), up is 1 when y has a fraction above t (a
+    // compare the JIT turns into a conditional move), and t + up is clamped in int. Above 1 t is at
+    // least depth, below 0 t + up is at most 0 and NaN gives t = 0, up = 0, so every float gives
+    // what the old formula did
+    static int quantize(float v, int depth) {
+        float y = v * depth;
+        int t = (int) y;
+        int up = ((float) t < y) ? 1 : 0;
+        return Math.max(Math.min(t, depth - up) + up, 0);
+    }
+
+    static void read(String filename, CompactImage img) throws IOException {
+        try (FileChannel ch = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            Header h = readHeader(ch);
+            h.checkFits();
+            int n = h.width * h.height * h.channels;
+            img.width = h.width;
+            img.height = h.height;
+            img.channels = h.channels;
+            img.depth = h.depth;
+            img.format = h.format;
+            if (h.bytesPerSample() == 1) {
+                img.bytes = BufferPool.bytes(n);
+                img.shorts = null;
+                if (h.plain()) new AsciiReader(ch, h).next(img.bytes, 0, n);
+                else readFully(ch, ByteBuffer.wrap(img.bytes), h.dataOffset);
+            } else {
+                img.shorts = BufferPool.shorts(n);
+                img.bytes = null;
+                ByteBuffer payload = payload(ch, h);
+                payload.asShortBuffer().get(img.shorts); // big-endian, as Netpbm defines it
+                if (payload.hasArray()) BufferPool.release(payload.array());
+            }
+        }
+    }
+
+    // the samples as they are stored in the file (1 byte each, or 2 big-endian bytes above depth 255);
+    // the header goes to img, its data is not touched
+    static byte[] readSamples(String filename, Image img) throws IOException {
+        try (FileChannel ch = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            Header h = readHeader(ch);
+            h.checkFits();
+            copyHeader(h, img);
+            long size = h.payloadSize();
+            if (h.plain()) {
+                byte[] samples = BufferPool.bytes((int) size);
+                new AsciiReader(ch, h).next(samples, 0, h.width * h.height * h.channels);
+                return samples;
+            }
+            if (h.dataOffset + size > ch.size()) {
+                throw new EOFException("File is shorter than its header says (" + ch.size() + " bytes)");
+            }
+            byte[] samples = BufferPool.bytes((int) size);
+            readFully(ch, ByteBuffer.wrap(samples), h.dataOffset);
+            return samples;
+        }
+    }
+
+    // the opposite: header of img, then the samples as they are
+    static void writeSamples(String filename, Image img, byte[] samples) throws IOException {
+        try (FileChannel ch = open(filename)) {
+            ByteBuffer header = header(img);
+            if (!plain(img.format)) {
+                writeFully(ch, header, ByteBuffer.wrap(samples));
+                return;
+            }
+            int bps = (img.depth > 255) ? 2 : 1;
+            AsciiWriter text = new AsciiWriter(ch, header, bps);
+            text.write(ByteBuffer.wrap(samples), img.width * img.height * img.channels);
+            text.finish();
+        }
+    }
+
+    static void write(String filename, PpmImage img) throws IOException {
+        write(filename, img, 1);
+    }
+
+    // same, every chunk encoded on numThreads threads of the shared pool (into a pooled heap chunk,
+    // several times CHUNK so the bands are worth handing out)
+    static void write(String filename, PpmImage img, int numThreads) throws IOException {
+        int depth = img.depth, bps = (depth > 255) ? 2 : 1;
+        float[] data = img.data;
+        try (FileChannel ch = open(filename)) {
+            ByteBuffer header = header(img);
+            AsciiWriter text = plain(img.format) ? new AsciiWriter(ch, header, bps) : null;
+            int perChunk = Math.min(data.length, 8 * CHUNK / bps);
+            byte[] bytes = BufferPool.bytes(perChunk * bps);
+            ByteBuffer chunk = ByteBuffer.wrap(bytes);
+            for (int start = 0; start < data.length || header.hasRemaining(); start += perChunk) {
+                int end = Math.min(data.length, start + perChunk);
+                encode(data, start, end - start, bytes, 0, depth, numThreads);
+                chunk.clear().limit((end - start) * bps);
+                if (text != null) text.write(chunk, end - start);
+                else writeFully(ch, header, chunk);
+            }
+            if (text != null) text.finish();
+            BufferPool.release(bytes);
+        }
+    }
+
+    static void write(String filename, CompactImage img) throws IOException {
+        try (FileChannel ch = open(filename)) {
+            ByteBuffer header = header(img);
+            AsciiWriter text = plain(img.format) ? new AsciiWriter(ch, header, img.bytesPerSample()) : null;
+            if (img.bytes != null) {
+                if (text == null) {
+                    writeFully(ch, header, ByteBuffer.wrap(img.bytes));
+                    return;
+                }
+                text.write(ByteBuffer.wrap(img.bytes), img.bytes.length);
+                text.finish();
+                return;
+            }
+            ByteBuffer chunk = WRITE_BUFFER.get();
+            short[] s = img.shorts;
+            int perChunk = CHUNK / 2;
+            for (int start = 0; start < s.length || header.hasRemaining(); start += perChunk) {
+                int end = Math.min(s.length, start + perChunk);
+                chunk.clear();
+                chunk.asShortBuffer().put(s, start, end - start);
+                chunk.limit(2 * (end - start));
+                if (text != null) text.write(chunk, end - start);
+                else writeFully(ch, header, chunk);
+            }
+            if (text != null) text.finish();
+        }
+    }
+
+    private static void copyHeader(Header h, Image img) {
+        img.width = h.width;
+        img.height = h.height;
+        img.channels = h.channels;
+        img.depth = h.depth;
+        img.format = h.format;
+    }
+
+    // every output goes through here. The old file is deleted rather than truncated: it may be a hard
+    // link to a ResultCache entry (or another output), which must keep its contents
+    static FileChannel open(String filename) throws IOException {
+        Path p = Paths.get(filename);
+        Files.deleteIfExists(p);
+        return FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    // the header of img's format: plain if it was read from a plain file, binary otherwise
+    static ByteBuffer header(Image img) {
+        String magic = plain(img.format) ? ((img.channels == 1) ? "P2" : "P3") : ((img.channels == 1) ? "P5" : "P6");
+        return ByteBuffer.wrap((magic + "\n" + img.width + " " + img.height + "\n" + img.depth + "\n").getBytes());
+    }
+
+    // the samples: mapped for big files, read into a (pooled) heap buffer for small ones; plain
+    // samples are parsed into a pooled heap buffer, in the binary layout
+    static ByteBuffer payload(FileChannel ch, Header h) throws IOException {
+        h.checkFits();
+        long size = h.payloadSize();
+        if (h.plain()) {
+            byte[] samples = BufferPool.bytes((int) size);
+            new AsciiReader(ch, h).next(samples, 0, h.width * h.height * h.channels);
+            return ByteBuffer.wrap(samples);
+        }
+        if (h.dataOffset + size > ch.size()) {
+            throw new EOFException("File is shorter than its header says (" + ch.size() + " bytes)");
+        }
+        if (size >= MAP_THRESHOLD) {
+            return ch.map(FileChannel.MapMode.READ_ONLY, h.dataOffset, size);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(BufferPool.bytes((int) size));
+        readFully(ch, buf, h.dataOffset);
+        buf.flip();
+        return buf;
+    }
+
+    // a read can return fewer bytes than asked for, so keep reading until the buffer is full
+    static void readFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, position);
+            if (n < 0) throw new EOFException("Unexpected end of file at byte " + position);
+            position += n;
+        }
+    }
+
+    // same for writes: gathering write of header + data until both are out
+    static void writeFully(FileChannel ch, ByteBuffer header, ByteBuffer data) throws IOException {
+        ByteBuffer[] bufs = {header, data};
+        while (header.hasRemaining() || data.hasRemaining()) ch.write(bufs);
+    }
+
+    // magic number, width, height and depth; whitespace and # comments (up to the end of the line)
+    // may appear anywhere between them. In the binary formats exactly one whitespace byte separates
+    // the depth from the samples, in the plain ones any whitespace and comments
+    static Header readHeader(FileChannel ch) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        while (true) {
+            buf.clear();
+            int n = 0;
+            while (buf.hasRemaining()) {
+                int r = ch.read(buf, n);
+                if (r < 0) break;
+                n += r;
+            }
+            buf.flip();
+            Header h = parseHeader(buf);
+            if (h != null) return h;
+            if (n < buf.capacity()) throw new EOFException("Incomplete header");
+            buf = ByteBuffer.allocate(buf.capacity() * 2); // very long comments
+        }
+    }
+
+    // returns null if the buffer ends before the header does
+    private static Header parseHeader(ByteBuffer buf) throws IOException {
+        int limit = buf.limit();
+        if (limit < 2) return null;
+        if (buf.get(0) != 'P') throw new IOException("Not a PPM/PGM file");
+        Header h = new Header();
+        switch (buf.get(1)) {
+            case '2': case '5': h.channels = 1; break;
+            case '3': case '6': h.channels = 3; break;
+            default: throw new IOException("Unsupported format P" + (char) buf.get(1));
+        }
+        h.format = buf.get(1) - '0';
+        int[] values = new int[3];
+        int p = 2;
+        for (int v = 0; v < 3; v++) {
+            // skip whitespace and comments
+            while (true) {
+                if (p >= limit) return null;
+                byte b = buf.get(p);
+                if (b == '#') {
+                    while (p < limit && buf.get(p) != '\n' && buf.get(p) != '\r') p++;
+                } else if (b == ' ' || b == '\t' || b == '\n' || b == '\r') {
+                    p++;
+                } else {
+                    break;
+                }
+            }
+            int start = p, value = 0;
+            while (p < limit && buf.get(p) >= '0' && buf.get(p) <= '9') {
+                if (value > (Integer.MAX_VALUE - 9) / 10) throw new IOException("Header value too big at byte " + start);
+                value = value * 10 + (buf.get(p) - '0');
+                p++;
+            }
+            if (p == start) throw new IOException("Bad header value at byte " + p);
+            if (p >= limit) return null;
+            values[v] = value;
+        }
+        h.width = values[0];
+        h.height = values[1];
+        h.depth = values[2];
+        if (h.depth < 1 || h.depth > 65535) throw new IOException("Bad depth " + h.depth);
+        if ((long) h.width * h.channels * h.bytesPerSample() > Integer.MAX_VALUE) {
+            throw new IOException("Rows too long: width " + h.width);
+        }
+        h.dataOffset = h.plain() ? p : p + 1; // a plain file may go on with a comment right away
+        return h;
+    }
+
+    // plain (P2/P3) samples: decimal numbers separated by whitespace, # comments allowed anywhere.
+    // The file is read a buffer at a time and parsed by a byte loop (no Strings), and the values
+    // are stored like binary samples (1 byte, or 2 big-endian bytes above depth 255)
+    static final class AsciiReader {
+        private final FileChannel ch;
+        private final int depth, bps;
+        private final byte[] buf = new byte[CHUNK];
+        private long pos; // file position of buf[0]
+        private int p, end;
+
+        AsciiReader(FileChannel ch, Header h) {
+            this.ch = ch;
+            this.depth = h.depth;
+            this.bps = h.bytesPerSample();
+            this.pos = h.dataOffset;
+        }
+
+        // the next n samples to dst[off]
+        void next(byte[] dst, int off, int n) throws IOException {
+            for (int i = 0; i < n; i++) {
+                int b = read();
+                // whitespace and comments before the number
+                while (b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == '#') {
+                    if (b == '#') {
+                        do b = read(); while (b != '\n' && b != '\r' && b >= 0);
+                    }
+                    b = read();
+                }
+                if (b < 0) throw new EOFException("File ends after " + i + " of " + n + " samples");
+                if (b < '0' || b > '9') throw new IOException("Bad sample at byte " + (pos + p - 1));
+                int v = 0;
+                do {
+                    v = v * 10 + (b - '0');
+                    b = read();
+                } while (b >= '0' && b <= '9' && v <= depth);
+                if (v > depth) throw new IOException("Sample above depth " + depth + " at byte " + (pos + p - 1));
+                if (b == '#') p--; // a comment right after the number, the next call skips it
+                else if (b >= 0 && b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                    throw new IOException("Bad sample at byte " + (pos + p - 1));
+                }
+                if (bps == 1) {
+                    dst[off++] = (byte) v;
+                } else {
+                    dst[off++] = (byte) (v >> 8);
+                    dst[off++] = (byte) v;
+                }
+            }
+        }
+
+        // the next byte, or -1 at the end of the file
+        private int read() throws IOException {
+            if (p == end) {
+                pos += end;
+                p = 0;
+                end = Math.max(0, ch.read(ByteBuffer.wrap(buf), pos));
+                if (end == 0) return -1;
+            }
+            return buf[p++];
+        }
+    }
+
+    // the opposite: samples (binary layout) as decimal text after the header, LINE samples per line
+    // so lines stay under the 70 characters Netpbm asks for
+    static final class AsciiWriter {
+        private final FileChannel ch;
+        private final ByteBuffer header;
+        private final int bps, line;
+        private final byte[] text = new byte[CHUNK];
+        private int column; // samples on the current line
+
+        AsciiWriter(FileChannel ch, ByteBuffer header, int bps) {
+            this.ch = ch;
+            this.header = header;
+            this.bps = bps;
+            this.line = (bps == 1) ? 17 : 11;
+        }
+
+        // n samples from the position of samples
+        void write(ByteBuffer samples, int n) throws IOException {
+            int o = 0;
+            for (int i = 0; i < n; i++) {
+                if (o > text.length - 8) {
+                    writeFully(ch, header, ByteBuffer.wrap(text, 0, o));
+                    o = 0;
+                }
+                int v = (bps == 1) ? samples.get() & 0xFF : samples.getShort() & 0xFFFF;
+                if (column == line) {
+                    text[o++] = '\n';
+                    column = 0;
+                } else if (column > 0) {
+                    text[o++] = ' ';
+                }
+                column++;
+                int digits = (v < 10) ? 1 : (v < 100) ? 2 : (v < 1000) ? 3 : (v < 10000) ? 4 : 5;
+                for (int d = o + digits - 1; d >= o; d--) {
+                    text[d] = (byte) ('0' + v % 10);
+                    v /= 10;
+                }
+                o += digits;
+            }
+            writeFully(ch, header, ByteBuffer.wrap(text, 0, o));
+        }
+
+        // the last newline (and the header of an empty image)
+        void finish() throws IOException {
+            writeFully(ch, header, ByteBuffer.wrap(new byte[]{'\n'}));
+        }
+    }
+}
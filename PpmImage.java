@@ -1,7 +1,5 @@
 import java.io.*;
 
-import static java.lang.Math.ceil;
-
 class PpmImage extends Image {
     PpmImage() {
         this.width = 0;
@@ -19,128 +17,51 @@ class PpmImage extends Image {
         this.data = new float[width * height * channels];
     }
 
+    // same, with the pixel array taken from BufferPool (its contents are undefined)
+    static PpmImage pooled(int width, int height, int channels, int depth) {
+        PpmImage img = new PpmImage();
+        img.width = width;
+        img.height = height;
+        img.channels = channels;
+        img.depth = depth;
+        img.data = BufferPool.floats(width * height * channels);
+        return img;
+    }
 
     public float clamp(float x, float start, float end) {
         return Float.min(Float.max(x, start), end);
     }
 
-    public String skipSpaces(String line) {
-        int i = 0;
-        char a = line.charAt(i);
-        while (a == ' ' || a == '\t') {
-            i++;
-            a = line.charAt(i);
-        }
-        if (i > 0)
-            line = line.substring(i);
-        return line;
+    // the file is read through PpmCodec (NIO, the samples are decoded straight into data)
+    public void ppmImport(String filename) {
+        ppmImport(filename, 1);
     }
 
-    public void skipLine(InputStream is) {
+    // the samples are converted on numThreads threads of the shared pool
+    public void ppmImport(String filename, int numThreads) {
         try {
-            int tmp = 0;
-            while (tmp != 10)
-                tmp = is.read();
+            PpmCodec.read(filename, this, numThreads);
         } catch (IOException e) {
             e.printStackTrace();
+            System.out.println("Could not open file " + filename);
+            unread();
         }
     }
 
-    public String nextLine(InputStream is) {
-        StringBuilder tmpString = new StringBuilder();
-        try {
-            int tmp;
-            tmp = is.read();
-            if ((char) tmp == '#')
-                skipLine(is);
-            else if (tmp != 10)
-                tmpString.append((char) tmp);
-            while (tmp != 10) {
-                tmp = is.read();
-                if (tmp != 10)
-                    tmpString.append((char) tmp);
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return tmpString.toString();
+    public boolean ppmExport(String filename) {
+        return ppmExport(filename, 1);
     }
 
-    public void ppmImport(String filename) {
-        String header, line;
-        int tmp;
-        /* apertura del file */
+    // false if the file could not be (completely) written
+    public boolean ppmExport(String filename, int numThreads) {
         try {
-            InputStream inputStream = new FileInputStream(filename);
-            header = nextLine(inputStream);
-            if (header == null) {
-                System.out.println("Could not read from " + filename);
-            } else {
-                if (header.equals("P5") || header.equals("P5\n")) {
-                    this.channels = 1;
-                    line = nextLine(inputStream);
-                    line = skipSpaces(line);
-                    parseDimensions(line);
-                } else if (header.equals("P6") || header.equals("P6\n")) {
-                    this.channels = 3;
-                    line = nextLine(inputStream);
-                    line = skipSpaces(line);
-                    parseDimensions(line);
-                } else {
-                    line = nextLine(inputStream);
-                    line = skipSpaces(line);
-                }
-                line = nextLine(inputStream);
-                line = skipSpaces(line);
-                this.depth = Integer.parseInt(line);
-                this.data = new float[this.width * this.height * this.channels];
-                byte[] byteData = new byte[this.width * this.height * this.channels];
-                inputStream.read(byteData);
-
-                float scale = 1.0f / ((float) this.depth);
-                for (int i = 0; i < byteData.length; i++) {
-                    tmp = (byteData[i] < 0) ? byteData[i] + 256 : byteData[i]; //signed to unsigned
-                    this.data[i] = (float) tmp * scale;
-                }
-                inputStream.close();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-            System.out.println("Could not open file " + filename);
-        }
-    }
-
-    public void ppmExport(String filename) {
-        int width, height, channels, depth;
-        /* apertura del file */
-        try {
-            width = this.width;
-            height = this.height;
-            depth = this.depth;
-            channels = this.channels;
-            OutputStream outputStream = new FileOutputStream(filename);
-            String tmp = "P6\n" + width + " " + height + "\n" + depth + "\n";
-            outputStream.write(tmp.getBytes());
-            int x;
-            byte[] writeData = new byte[width * height * channels];
-            for (int i = 0; i < width * height * channels; i++) {
-                x = (int) ceil(clamp(this.data[i], 0, 1) * depth);
-                writeData[i] = (byte) x;
-            }
-            outputStream.write(writeData);
-            outputStream.close();
+            PpmCodec.write(filename, this, numThreads);
+            return true;
         } catch (IOException e) {
             e.printStackTrace();
             System.out.println("Could not open file" + filename);
+            return false;
         }
     }
 
-
-    public void parseDimensions(String line) {
-        line = skipSpaces(line);
-        String[] dimensions = line.split("\\s+");
-        this.width = Integer.parseInt(dimensions[0]);
-        this.height = Integer.parseInt(dimensions[1]);
-    }
-
 }
@@ -0,0 +1,208 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+//live preview of the op chain on one image, for trying out chains in the GUI
+//every change of the input or the ops cancels the running preview and starts a new one:
+//first the chain runs on a proxy (the image box-averaged down to at most PROXY_SIZE pixels across),
+//which takes milliseconds and is shown right away. Then the full resolution result is computed tile
+//by tile on the shared pool and every finished tile replaces its part of the picture. Cancelling is
+//cooperative: the tiles check the flag of their render before they start, so a cancelled render
+//stops within one tile
+class PreviewPanel extends JPanel {
+
+    private static final long serialVersionUID = 1L;
+
+    static final int PROXY_SIZE = 480;
+    // the picture is repainted at most this often (ms) while refining
+    static final int REPAINT_MS = 50;
+
+    private final Engine engine; // its thread count is used for the preview too
+    private final JLabel status = new JLabel(" ");
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "preview");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile BufferedImage picture;
+    private Render current;
+    // the last image read, so changing the ops doesn't read it again
+    private String loadedPath;
+    private long loadedStamp;
+    private PpmImage loaded;
+
+    // one preview; cancelled is set when a newer one starts
+    private final class Render implements Runnable {
+        final String path, ops;
+        volatile boolean cancelled;
+        long lastRepaint;
+
+        Render(String path, String ops) {
+            this.path = path;
+            this.ops = ops;
+        }
+
+        public void run() {
+            if (cancelled) return;
+            long t0 = System.currentTimeMillis();
+            PpmImage img = load(path);
+            if (img == null || img.width == 0) {
+                setStatus("Preview: could not read " + path);
+                return;
+            }
+            FusedChain chain;
+            try {
+                chain = OpPlanner.plan(ops.split("[,+]")).chain();
+            } catch (RuntimeException e) {
+                setStatus("Preview: " + e.getMessage());
+                return;
+            }
+            int threads = engine.threads; // the same pool as a run of the GUI
+
+            // 1. the proxy
+            int step = Math.max(1, (Math.max(img.width, img.height) + PROXY_SIZE - 1) / PROXY_SIZE);
+            PpmImage proxy = downscale(img, step);
+            PpmImage proxyOut = ImageProcessor.process(proxy, chain, threads);
+            BufferedImage pic = new BufferedImage(proxy.width, proxy.height, BufferedImage.TYPE_INT_RGB);
+            copy(proxyOut, pic, 1, 0, proxy.height, 0, proxy.width);
+            BufferPool.recycle(proxyOut);
+            if (cancelled) return;
+            picture = pic;
+            repaint();
+            long tProxy = System.currentTimeMillis() - t0;
+            setStatus("Preview: proxy in " + tProxy + " ms, refining...");
+
+            // 2. full resolution, tile by tile
+            float[] out = BufferPool.floats(img.width * img.height * img.channels);
+            int across = (img.width + FusedChain.TILE_COLS - 1) / FusedChain.TILE_COLS;
+            int down = (img.height + FusedChain.TILE_ROWS - 1) / FusedChain.TILE_ROWS;
+            PpmImage full = new PpmImage();
+            full.width = img.width;
+            full.height = img.height;
+            full.channels = img.channels;
+            full.depth = img.depth;
+            full.data = out;
+            Worker.forEachBand(across * down, 1, threads, (t, tEnd) -> {
+                for (; t < tEnd; t++) {
+                    if (cancelled) return;
+                    int r0 = (t / across) * FusedChain.TILE_ROWS, c0 = (t % across) * FusedChain.TILE_COLS;
+                    int r1 = Math.min(r0 + FusedChain.TILE_ROWS, img.height), c1 = Math.min(c0 + FusedChain.TILE_COLS, img.width);
+                    chain.runTile(img, out, r0, r1, c0, c1);
+                    copy(full, pic, step, r0, r1, c0, c1);
+                    tileDone();
+                }
+            });
+            BufferPool.release(out);
+            if (cancelled) return;
+            repaint();
+            setStatus("Preview: proxy in " + tProxy + " ms, full resolution in "
+                    + (System.currentTimeMillis() - t0) + " ms");
+        }
+
+        private void tileDone() {
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+                if (now - lastRepaint < REPAINT_MS) return;
+                lastRepaint = now;
+            }
+            repaint();
+        }
+    }
+
+    PreviewPanel(Engine engine) {
+        super(new BorderLayout());
+        this.engine = engine;
+        JComponent view = new JComponent() {
+            @Override
+            protected void paintComponent(Graphics g) {
+                BufferedImage pic = picture;
+                if (pic == null) return;
+                // fit into the component, keeping the aspect ratio
+                double s = Math.min((double) getWidth() / pic.getWidth(), (double) getHeight() / pic.getHeight());
+                int w = (int) (pic.getWidth() * s), h = (int) (pic.getHeight() * s);
+                ((Graphics2D) g).setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                        RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.drawImage(pic, (getWidth() - w) / 2, (getHeight() - h) / 2, w, h, null);
+            }
+        };
+        add(view, BorderLayout.CENTER);
+        add(status, BorderLayout.SOUTH);
+    }
+
+    // cancels the running preview and starts one for path and ops (nothing if path isn't a file)
+    synchronized void show(String path, String ops) {
+        if (current != null) current.cancelled = true;
+        current = null;
+        if (path.isEmpty() || ops.isEmpty() || !new File(path).isFile()) {
+            picture = null;
+            repaint();
+            setStatus(" ");
+            return;
+        }
+        current = new Render(path, ops);
+        worker.submit(current);
+    }
+
+    synchronized void cancel() {
+        if (current != null) current.cancelled = true;
+        current = null;
+    }
+
+    // only the preview thread reads images
+    private PpmImage load(String path) {
+        long stamp = new File(path).lastModified();
+        if (!path.equals(loadedPath) || stamp != loadedStamp) {
+            if (loaded != null) BufferPool.recycle(loaded);
+            loaded = new PpmImage();
+            loaded.ppmImport(path);
+            loadedPath = path;
+            loadedStamp = stamp;
+        }
+        return loaded;
+    }
+
+    private void setStatus(String text) {
+        SwingUtilities.invokeLater(() -> status.setText(text));
+    }
+
+    // every step x step block of img averaged into one pixel
+    static PpmImage downscale(PpmImage img, int step) {
+        int W = (img.width + step - 1) / step, H = (img.height + step - 1) / step, C = img.channels;
+        PpmImage small = new PpmImage(W, H, C, img.depth);
+        for (int y = 0; y < H; y++) {
+            for (int x = 0; x < W; x++) {
+                int y1 = Math.min(img.height, (y + 1) * step), x1 = Math.min(img.width, (x + 1) * step);
+                for (int c = 0; c < C; c++) {
+                    float sum = 0;
+                    for (int i = y * step; i < y1; i++) {
+                        for (int j = x * step; j < x1; j++) sum += img.data[(i * img.width + j) * C + c];
+                    }
+                    small.data[(y * W + x) * C + c] = sum / ((y1 - y * step) * (x1 - x * step));
+                }
+            }
+        }
+        return small;
+    }
+
+    // the pixels of rows [r0,r1) and columns [c0,c1) of img that fall on the picture (every step-th
+    // pixel, the picture is img scaled down by step)
+    static void copy(PpmImage img, BufferedImage pic, int step, int r0, int r1, int c0, int c1) {
+        int C = img.channels;
+        for (int y = (r0 + step - 1) / step; y * step < r1 && y < pic.getHeight(); y++) {
+            for (int x = (c0 + step - 1) / step; x * step < c1 && x < pic.getWidth(); x++) {
+                int idx = (y * step * img.width + x * step) * C;
+                int r = level(img.data[idx]);
+                int g = (C == 1) ? r : level(img.data[idx + 1]);
+                int b = (C == 1) ? r : level(img.data[idx + 2]);
+                pic.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+    }
+
+    private static int level(float v) {
+        return PpmCodec.quantize(v, 255); // as the file writer does it
+    }
+}
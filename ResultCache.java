@@ -0,0 +1,242 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+//on-disk cache of results (--cache=<dir>), for reruns over folders where most files didn't change
+//an entry is named by the SHA-256 of the input's geometry, format and samples, the planned op chain (kernel
+//sizes and exact values) and the mode, so a changed file, chain or mode is a different entry. The
+//samples are hashed in HASH_CHUNK pieces on the shared pool (big files memory-mapped) and the piece
+//hashes are hashed again, which costs far less than decoding and running the chain.
+//a hit hard-links the entry to the output (or copies it with --cache-copy, or when the cache is on
+//another filesystem) and touches it: entries are evicted oldest first once the cache is bigger than
+//--cache-size=<MB>. A linked output that is written again is deleted first (PpmCodec.open), so the
+//entry keeps its contents. On a miss the samples read for the key are decoded by the caller, so the
+//input is read only once. Entries are written to a temporary file and renamed, so several processes can
+//share a cache; an entry evicted by another process just turns into a miss
+class ResultCache {
+
+    static final long DEFAULT_MAX_BYTES = 1L << 30;
+    static final int HASH_CHUNK = 4 << 20;
+    // part of every key, change it when the results of the same chain change
+    private static final String VERSION = "1";
+
+    final File dir;
+    final long maxBytes;
+    final boolean link;
+    private final byte[] chainKey;
+    private final AtomicLong size = new AtomicLong(-1); // bytes in the cache, -1 until scanned
+    final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    // mode: anything that changes the result for the same chain (compact, stream, vector, ...)
+    ResultCache(File dir, long maxBytes, boolean link, FusedChain chain, String mode) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.link = link;
+        StringBuilder b = new StringBuilder(VERSION).append('|').append(mode);
+        for (Kernel k : chain.ops) {
+            if (k == null) {
+                b.append("|m");
+                continue;
+            }
+            b.append('|').append(k.size).append(':');
+            for (float v : k.values) b.append(Integer.toHexString(Float.floatToIntBits(v))).append(',');
+        }
+        this.chainKey = b.toString().getBytes();
+        dir.mkdirs();
+    }
+
+    // the key of inPath's result (hex); null if the file can't be read as PPM/PGM
+    String key(String inPath, int numThreads) {
+        try {
+            PpmCodec.Raw raw = PpmCodec.readRaw(inPath);
+            try {
+                return key(raw, numThreads);
+            } finally {
+                raw.release();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Could not open file " + inPath);
+            return null;
+        }
+    }
+
+    // same, from samples already read: a miss decodes them next, so the file is read only once
+    String key(PpmCodec.Raw raw, int numThreads) {
+        PpmCodec.Header h = raw.header;
+        ByteBuffer payload = raw.payload;
+        int n = (int) h.payloadSize();
+        int pieces = Math.max(1, (n + HASH_CHUNK - 1) / HASH_CHUNK);
+        byte[][] digests = new byte[pieces][];
+        Worker.forEachBand(pieces, 1, numThreads, (p0, p1) -> {
+            MessageDigest md = sha256();
+            for (int p = p0; p < p1; p++) {
+                ByteBuffer piece = payload.duplicate();
+                piece.limit(Math.min(n, (p + 1) * HASH_CHUNK)).position(p * HASH_CHUNK);
+                md.update(piece);
+                digests[p] = md.digest();
+            }
+        });
+
+        MessageDigest md = sha256();
+        md.update(chainKey);
+        md.update((h.width + "x" + h.height + "x" + h.channels + "x" + h.depth + "P" + h.format).getBytes());
+        for (byte[] d : digests) md.update(d);
+        StringBuilder hex = new StringBuilder();
+        for (byte x : md.digest()) hex.append(Character.forDigit((x >> 4) & 15, 16)).append(Character.forDigit(x & 15, 16));
+        return hex.toString();
+    }
+
+    // puts the cached result of key at outFile; false on a miss, and outFile is left alone. On a hit
+    // the entry is linked (or copied) next to outFile and renamed over it: the old outFile may be a
+    // hard link to an entry, which must not be overwritten in place
+    boolean fetch(String key, File outFile) {
+        if (key == null) return false;
+        Path entry = entry(key), out = outFile.toPath();
+        Path tmp = out.resolveSibling(".cache-" + Thread.currentThread().getId() + "-" + out.getFileName());
+        try {
+            Files.deleteIfExists(tmp);
+            if (!link || !tryLink(tmp, entry)) Files.copy(entry, tmp, StandardCopyOption.REPLACE_EXISTING);
+            try {
+                Files.move(tmp, out, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, out, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis())); // LRU
+            hits.incrementAndGet();
+            return true;
+        } catch (NoSuchFileException e) {
+            misses.incrementAndGet();
+            return false;
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Could not read cache entry " + entry);
+            misses.incrementAndGet();
+            return false;
+        } finally {
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // stores the result just written to outFile as the entry of key
+    void store(String key, File outFile) {
+        if (key == null) return;
+        Path entry = entry(key);
+        Path tmp = null;
+        try {
+            Files.createDirectories(entry.getParent());
+            tmp = Files.createTempFile(entry.getParent(), ".tmp-", ".ppm");
+            Files.copy(outFile.toPath(), tmp, StandardCopyOption.REPLACE_EXISTING);
+            long bytes = Files.size(tmp);
+            try {
+                Files.move(tmp, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING);
+            }
+            tmp = null;
+            if (size.get() < 0) scan();
+            if (size.addAndGet(bytes) > maxBytes) evict();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Could not write cache entry " + entry);
+        } finally {
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    String report() {
+        return "Cache: " + hits.get() + " hits, " + misses.get() + " misses";
+    }
+
+    private Path entry(String key) {
+        return Paths.get(dir.getPath(), key.substring(0, 2), key + ".ppm");
+    }
+
+    private static boolean tryLink(Path out, Path entry) throws NoSuchFileException {
+        try {
+            Files.createLink(out, entry);
+            return true;
+        } catch (NoSuchFileException e) {
+            throw e;
+        } catch (UnsupportedOperationException | IOException e) {
+            return false; // other filesystem, no hard links: copy instead
+        }
+    }
+
+    private List<Path> entries() throws IOException {
+        List<Path> list = new ArrayList<>();
+        try (Stream<Path> s = Files.walk(dir.toPath(), 2)) {
+            s.filter(p -> p.getFileName().toString().endsWith(".ppm") && !p.getFileName().toString().startsWith(".tmp-"))
+                    .forEach(list::add);
+        }
+        return list;
+    }
+
+    private void scan() throws IOException {
+        long total = 0;
+        for (Path p : entries()) {
+            try {
+                total += Files.size(p);
+            } catch (NoSuchFileException ignored) {
+                // evicted meanwhile
+            }
+        }
+        size.set(total);
+    }
+
+    // deletes the least recently used entries until the cache is 90% of maxBytes
+    private synchronized void evict() throws IOException {
+        List<Path> list = entries();
+        long[] times = new long[list.size()], sizes = new long[list.size()];
+        Integer[] order = new Integer[list.size()];
+        long total = 0;
+        for (int i = 0; i < list.size(); i++) {
+            order[i] = i;
+            try {
+                times[i] = Files.getLastModifiedTime(list.get(i)).toMillis();
+                sizes[i] = Files.size(list.get(i));
+            } catch (NoSuchFileException e) {
+                times[i] = Long.MIN_VALUE;
+            }
+            total += sizes[i];
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(times[a], times[b]));
+        long target = maxBytes / 10 * 9;
+        for (int k = 0; k < order.length && total > target; k++) {
+            int i = order[k];
+            Files.deleteIfExists(list.get(i));
+            total -= sizes[i];
+        }
+        size.set(total);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
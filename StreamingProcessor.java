@@ -0,0 +1,181 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.LongAdder;
+
+//out-of-core mode for images that don't fit in memory
+//the samples are read a block of rows at a time, every op keeps only the rows of its input it still
+//needs (a rolling window of kernel height + one block), and output rows are written as soon as the
+//last op has produced them. Peak memory is O(width * (kernel height + BLOCK_ROWS) * ops),
+//independent of the image height
+public class StreamingProcessor {
+
+    // rows read, computed and written at a time
+    static final int BLOCK_ROWS = 16;
+
+    // one op of the chain and the window of its input rows
+    private static final class Stage {
+        final Kernel kernel; // null means mirror
+        final int half;
+        final LongAdder nanos; // time spent in this op, may be null
+        // rows [bufRow0, rowsIn) of this stage's input
+        final float[] buf;
+        final int capacityRows;
+        int bufRow0, rowsIn, rowsOut;
+        // rows this stage produced, handed to the next stage
+        final float[] out;
+
+        Stage(Kernel kernel, LongAdder nanos, int rowLen) {
+            this.kernel = kernel;
+            this.nanos = nanos;
+            this.half = (kernel == null) ? 0 : kernel.radius();
+            this.capacityRows = 2 * half + BLOCK_ROWS;
+            this.buf = new float[capacityRows * rowLen];
+            this.out = new float[BLOCK_ROWS * rowLen];
+        }
+    }
+
+    private final int W, H, C, depth, rowLen, numThreads;
+    private final Stage[] stages;
+    private final FileChannel outCh;
+    private final ByteBuffer header;
+    private final ByteBuffer outBuf;
+    private final PpmCodec.AsciiWriter text; // plain output, else null
+    // time spent reading + decoding and encoding + writing
+    private long decodeNanos, encodeNanos;
+
+    private StreamingProcessor(PpmCodec.Header h, FusedChain chain, int numThreads, FileChannel outCh) {
+        this.W = h.width;
+        this.H = h.height;
+        this.C = h.channels;
+        this.depth = h.depth;
+        this.rowLen = W * C;
+        this.numThreads = numThreads;
+        this.stages = new Stage[chain.ops.length];
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new Stage(chain.ops[i], (chain.opNanos == null) ? null : chain.opNanos[i], rowLen);
+        }
+        this.outCh = outCh;
+        Image geometry = new Image();
+        geometry.width = W;
+        geometry.height = H;
+        geometry.channels = C;
+        geometry.depth = depth;
+        geometry.format = h.format; // the output keeps the input's format
+        this.header = PpmCodec.header(geometry);
+        this.outBuf = ByteBuffer.allocate(BLOCK_ROWS * rowLen * h.bytesPerSample());
+        this.text = h.plain() ? new PpmCodec.AsciiWriter(outCh, header, h.bytesPerSample()) : null;
+    }
+
+    // about the bytes process() holds for an image of h's geometry: the window and output rows of
+    // every stage, the decoded block and the read and write buffers
+    static long memory(PpmCodec.Header h, FusedChain chain) {
+        long rowLen = (long) h.width * h.channels, rows = BLOCK_ROWS;
+        for (Kernel k : chain.ops) rows += 2 * ((k == null) ? 0 : k.radius()) + 2 * BLOCK_ROWS;
+        return rowLen * 4 * rows + 2 * rowLen * BLOCK_ROWS * h.bytesPerSample();
+    }
+
+    // streams inPath through the ops into outPath; decode and encode times go to run (may be null)
+    static void process(String inPath, String outPath, FusedChain chain, int numThreads, Metrics.Run run)
+            throws IOException {
+        process(inPath, outPath, chain, numThreads, run, null);
+    }
+
+    // same as part of an engine job (may be null): a cancel stops it before the next block of rows,
+    // leaving outPath unfinished for the caller to delete
+    static void process(String inPath, String outPath, FusedChain chain, int numThreads, Metrics.Run run,
+                        Engine.Job<?> job) throws IOException {
+        try (FileChannel in = FileChannel.open(Paths.get(inPath), StandardOpenOption.READ);
+             FileChannel out = PpmCodec.open(outPath)) {
+            PpmCodec.Header h = PpmCodec.readHeader(in);
+            StreamingProcessor sp = new StreamingProcessor(h, chain, numThreads, out);
+
+            int rowBytes = sp.rowLen * h.bytesPerSample();
+            ByteBuffer inBuf = ByteBuffer.allocate(BLOCK_ROWS * rowBytes);
+            float[] block = new float[BLOCK_ROWS * sp.rowLen];
+            long pos = h.dataOffset;
+            PpmCodec.AsciiReader ascii = h.plain() ? new PpmCodec.AsciiReader(in, h) : null;
+            for (int r = 0; r < sp.H; r += BLOCK_ROWS) {
+                if (job != null && job.cancelled) return;
+                int count = Math.min(BLOCK_ROWS, sp.H - r);
+                long t0 = System.nanoTime();
+                inBuf.clear();
+                inBuf.limit(count * rowBytes);
+                if (ascii != null) {
+                    ascii.next(inBuf.array(), 0, count * sp.rowLen); // plain files are parsed in order
+                } else {
+                    PpmCodec.readFully(in, inBuf, pos);
+                    pos += count * rowBytes;
+                }
+                PpmCodec.decode(inBuf, 0, block, 0, count * sp.rowLen, h.depth);
+                sp.decodeNanos += System.nanoTime() - t0;
+                sp.push(0, block, r, count);
+            }
+            if (sp.text != null) sp.text.finish();
+            if (sp.header.hasRemaining()) PpmCodec.writeFully(out, sp.header, ByteBuffer.allocate(0));
+            if (run != null) {
+                run.pixels = (long) sp.W * sp.H;
+                run.stage("decode", sp.decodeNanos, in.size(), 0, 0);
+                run.stage("encode", sp.encodeNanos, 0, out.size(), 0);
+            }
+        }
+    }
+
+    // gives rows [firstRow, firstRow + count) to stage s (s == stages.length means the output file)
+    private void push(int s, float[] rows, int firstRow, int count) throws IOException {
+        if (s == stages.length) {
+            write(rows, count);
+            return;
+        }
+        Stage st = stages[s];
+
+        // drop the rows no output row needs any more, then append the new ones
+        if (st.rowsIn - st.bufRow0 + count > st.capacityRows) {
+            int keepFrom = Math.max(0, st.rowsOut - st.half);
+            int drop = keepFrom - st.bufRow0;
+            System.arraycopy(st.buf, drop * rowLen, st.buf, 0, (st.rowsIn - keepFrom) * rowLen);
+            st.bufRow0 = keepFrom;
+        }
+        System.arraycopy(rows, 0, st.buf, (st.rowsIn - st.bufRow0) * rowLen, count * rowLen);
+        st.rowsIn += count;
+
+        // output row i is final once input row i + half is in (or the input is complete)
+        int ready = (st.rowsIn == H) ? H : st.rowsIn - st.half;
+        while (st.rowsOut < ready) {
+            int a = st.rowsOut, b = Math.min(ready, a + BLOCK_ROWS);
+            long t0 = System.nanoTime();
+            compute(st, a, b);
+            if (st.nanos != null) st.nanos.add(System.nanoTime() - t0);
+            st.rowsOut = b;
+            push(s + 1, st.out, a, b - a);
+        }
+    }
+
+    private void compute(Stage st, int a, int b) {
+        if (st.kernel == null) {
+            for (int i = a; i < b; i++) {
+                int sRow = (i - st.bufRow0) * rowLen, dRow = (i - a) * rowLen;
+                for (int j = 0; j < W; j++) {
+                    for (int c = 0; c < C; c++) st.out[dRow + (W - 1 - j) * C + c] = st.buf[sRow + j * C + c];
+                }
+            }
+            return;
+        }
+        Convolution.Window src = new Convolution.Window(st.buf, st.bufRow0, 0, W);
+        Convolution.Window dst = new Convolution.Window(st.out, a, 0, W);
+        Worker.forEachBand(W, FusedChain.TILE_COLS, numThreads,
+                (c0, c1) -> Convolution.apply(src, dst, W, H, C, st.kernel, a, b, c0, c1));
+    }
+
+    private void write(float[] rows, int count) throws IOException {
+        long t0 = System.nanoTime();
+        outBuf.clear();
+        PpmCodec.encode(rows, 0, count * rowLen, outBuf, depth);
+        outBuf.flip();
+        if (text != null) text.write(outBuf, count * rowLen);
+        else PpmCodec.writeFully(outCh, header, outBuf);
+        encodeNanos += System.nanoTime() - t0;
+    }
+}
@@ -1,3 +1,11 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 //Global class used to run the program in Sequential mode 
 public class Universal {
 
@@ -38,6 +46,67 @@ public class Universal {
             default: return identityKernel;  // if non of the methods above is chosen, it gives back the identityKernel (does nothinf)
         }
     }
+
+    // same as getKernelByName, but gives back a Kernel (which knows if it can run as two 1D passes)
+    // bigger box blurs can be asked for as blur5, blur7, blur9... they are declared as row/column vectors
+    // kernels from a file are asked for as @path (e.g. blur+@psf31.txt)
+    public static Kernel getKernel(String name) {
+        if (name.trim().startsWith("@")) {
+            return loadKernel(name.trim().substring(1));
+        }
+        String n = name.toLowerCase().trim();
+        if (n.startsWith("blur") && n.length() > 4) {
+            try {
+                return boxBlur(Integer.parseInt(n.substring(4)));
+            } catch (NumberFormatException e) {
+                // not a size, fall through to the named kernels
+            }
+        }
+        return new Kernel(getKernelByName(n));
+    }
+
+    // kernels read from files, so a folder batch reads every file only once
+    private static final Map<String, Kernel> fileKernels = new ConcurrentHashMap<>();
+
+    // a kernel file has size*size numbers (size odd) separated by spaces, commas or new lines,
+    // written row by row; everything after # on a line is a comment
+    public static Kernel loadKernel(String path) {
+        return fileKernels.computeIfAbsent(path, p -> {
+            List<Float> values = new ArrayList<>();
+            try {
+                for (String line : Files.readAllLines(Paths.get(p))) {
+                    int hash = line.indexOf('#');
+                    if (hash >= 0) line = line.substring(0, hash);
+                    for (String tok : line.trim().split("[\\s,]+")) {
+                        if (!tok.isEmpty()) values.add(Float.parseFloat(tok));
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                throw new IllegalArgumentException("Could not read kernel file " + p + ": " + e.getMessage(), e);
+            }
+            int size = (int) Math.sqrt(values.size());
+            if (size * size != values.size() || size % 2 == 0) {
+                throw new IllegalArgumentException("Kernel file " + p + " must have an odd square number of values, has " + values.size());
+            }
+            float[] v = new float[values.size()];
+            for (int i = 0; i < v.length; i++) v[i] = values.get(i);
+            return new Kernel(v);
+        });
+    }
+
+    // size x size box blur, every weight is 1/(size*size)
+    public static Kernel boxBlur(int size) {
+        if (size < 1 || size % 2 == 0) {
+            throw new IllegalArgumentException("Blur size must be odd and positive: " + size);
+        }
+        float[] col = new float[size];
+        float[] row = new float[size];
+        for (int i = 0; i < size; i++) {
+            col[i] = 1f;
+            row[i] = (float) 1 / (size * size);
+        }
+        return new Kernel(col, row);
+    }
     }
 
 
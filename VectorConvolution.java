@@ -0,0 +1,161 @@
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorSpecies;
+
+//SIMD version of the kernel layer, built on the JDK Vector API (jdk.incubator.vector)
+//the samples of a row are contiguous floats (pixels with interleaved channels), so one vector covers
+//several pixels and channels at once; a tap at pixel offset dj is a load at float offset dj*C.
+//every lane adds its products in the same order as the scalar code, so the results are identical.
+//only use this class when Convolution.vectorAvailable() is true, otherwise it can't be loaded
+public class VectorConvolution {
+
+    static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    // same contract as Convolution.apply(Window, Window, ...)
+    static void apply(Convolution.Window src, Convolution.Window dst, int W, int H, int C, Kernel k,
+                      int r0, int r1, int c0, int c1) {
+        if (r1 <= r0 || c1 <= c0) return;
+        if (k.isSeparable() && k.size > 1) {
+            separable(src, dst, W, H, C, k, r0, r1, c0, c1);
+        } else if (FftConvolution.cheaper(k, r1 - r0, c1 - c0)) {
+            FftConvolution.apply(src, dst, W, H, C, k, r0, r1, c0, c1);
+        } else {
+            direct(src, dst, W, H, C, k, r0, r1, c0, c1);
+        }
+    }
+
+    // border strips go through the scalar clamped loop, the interior is vectorized
+    static void direct(Convolution.Window src, Convolution.Window dst, int W, int H, int C, Kernel k,
+                       int r0, int r1, int c0, int c1) {
+        int kSize = k.size, half = kSize / 2;
+        int ir0 = Math.max(r0, half), ir1 = Math.min(r1, H - half);
+        int ic0 = Math.max(c0, half), ic1 = Math.min(c1, W - half);
+        if (ir0 >= ir1 || ic0 >= ic1) {
+            Convolution.directClamped(src, dst, W, H, C, k, r0, r1, c0, c1);
+            return;
+        }
+        Convolution.directClamped(src, dst, W, H, C, k, r0, ir0, c0, c1);
+        Convolution.directClamped(src, dst, W, H, C, k, ir1, r1, c0, c1);
+        Convolution.directClamped(src, dst, W, H, C, k, ir0, ir1, c0, ic0);
+        Convolution.directClamped(src, dst, W, H, C, k, ir0, ir1, ic1, c1);
+
+        // flipped weights, wf[ii * kSize + jj] = values[(kSize-1-ii) * kSize + (kSize-1-jj)]
+        int taps = kSize * kSize;
+        float[] wf = new float[taps];
+        for (int q = 0; q < taps; q++) wf[q] = k.values[taps - 1 - q];
+
+        float[] s = src.data, d = dst.data;
+        int L = SPECIES.length();
+        int from = ic0 * C, to = ic1 * C;
+        int bound = from + SPECIES.loopBound(to - from);
+        for (int i = ir0; i < ir1; i++) {
+            int dRow = ((i - dst.r0) * dst.w - dst.c0) * C;
+            // float offset of the top-left tap of sample x is sTop + x
+            int sTop = ((i - half - src.r0) * src.w - src.c0 - half) * C;
+            int rs = src.w * C;
+            int x = from;
+            for (; x < bound; x += L) {
+                FloatVector acc = FloatVector.fromArray(SPECIES, s, sTop + x).mul(wf[0]);
+                for (int ii = 0; ii < kSize; ii++) {
+                    int base = sTop + ii * rs + x;
+                    for (int jj = (ii == 0) ? 1 : 0; jj < kSize; jj++) {
+                        acc = acc.add(FloatVector.fromArray(SPECIES, s, base + jj * C).mul(wf[ii * kSize + jj]));
+                    }
+                }
+                acc.intoArray(d, dRow + x);
+            }
+            for (; x < to; x++) {
+                float sum = 0f;
+                for (int ii = 0; ii < kSize; ii++) {
+                    int base = sTop + ii * rs + x;
+                    for (int jj = 0; jj < kSize; jj++) sum += s[base + jj * C] * wf[ii * kSize + jj];
+                }
+                d[dRow + x] = sum;
+            }
+        }
+    }
+
+    // horizontal pass into the band (vectorized away from the left/right border), then a vertical
+    // pass, which is vectorized over the whole row since only the row index is clamped
+    static void separable(Convolution.Window src, Convolution.Window dst, int W, int H, int C, Kernel k,
+                          int r0, int r1, int c0, int c1) {
+        int kSize = k.size, half = kSize / 2;
+        float[] s = src.data, d = dst.data;
+        float[] rowF = new float[kSize], colF = new float[kSize];
+        for (int q = 0; q < kSize; q++) {
+            rowF[q] = k.row[kSize - 1 - q];
+            colF[q] = k.col[kSize - 1 - q];
+        }
+        int L = SPECIES.length();
+
+        int b0 = Math.max(0, r0 - half);
+        int b1 = Math.min(H, r1 + half);
+        int bw = c1 - c0;
+        float[] band = Convolution.scratch(0, (b1 - b0) * bw * C);
+
+        int ic0 = Math.min(Math.max(c0, half), c1), ic1 = Math.max(ic0, Math.min(c1, W - half));
+        int from = ic0 * C, to = ic1 * C;
+        int bound = from + SPECIES.loopBound(to - from);
+        for (int i = b0; i < b1; i++) {
+            int bRow = ((i - b0) * bw - c0) * C;
+            int sRow = ((i - src.r0) * src.w - src.c0) * C;
+            horizontalClamped(s, sRow, band, bRow, W, C, rowF, c0, ic0);
+            horizontalClamped(s, sRow, band, bRow, W, C, rowF, ic1, c1);
+            int sLeft = sRow - half * C;
+            int x = from;
+            for (; x < bound; x += L) {
+                FloatVector acc = FloatVector.fromArray(SPECIES, s, sLeft + x).mul(rowF[0]);
+                for (int jj = 1; jj < kSize; jj++) {
+                    acc = acc.add(FloatVector.fromArray(SPECIES, s, sLeft + x + jj * C).mul(rowF[jj]));
+                }
+                acc.intoArray(band, bRow + x);
+            }
+            for (; x < to; x++) {
+                float sum = 0f;
+                for (int jj = 0; jj < kSize; jj++) sum += s[sLeft + x + jj * C] * rowF[jj];
+                band[bRow + x] = sum;
+            }
+        }
+
+        int vFrom = c0 * C, vTo = c1 * C;
+        int vBound = vFrom + SPECIES.loopBound(vTo - vFrom);
+        int[] bandRow = new int[kSize];
+        for (int i = r0; i < r1; i++) {
+            int dRow = ((i - dst.r0) * dst.w - dst.c0) * C;
+            for (int ii = 0; ii < kSize; ii++) {
+                int ik = i - half + ii;
+                if (ik < 0) ik = 0; else if (ik >= H) ik = H - 1;
+                bandRow[ii] = ((ik - b0) * bw - c0) * C;
+            }
+            int x = vFrom;
+            for (; x < vBound; x += L) {
+                FloatVector acc = FloatVector.fromArray(SPECIES, band, bandRow[0] + x).mul(colF[0]);
+                for (int ii = 1; ii < kSize; ii++) {
+                    acc = acc.add(FloatVector.fromArray(SPECIES, band, bandRow[ii] + x).mul(colF[ii]));
+                }
+                acc.intoArray(d, dRow + x);
+            }
+            for (; x < vTo; x++) {
+                float sum = 0f;
+                for (int ii = 0; ii < kSize; ii++) sum += band[bandRow[ii] + x] * colF[ii];
+                d[dRow + x] = sum;
+            }
+        }
+    }
+
+    // scalar horizontal pass with clamped columns, for pixel columns [j0,j1)
+    private static void horizontalClamped(float[] s, int sRow, float[] band, int bRow, int W, int C,
+                                          float[] rowF, int j0, int j1) {
+        int kSize = rowF.length, half = kSize / 2;
+        for (int j = j0; j < j1; j++) {
+            for (int c = 0; c < C; c++) {
+                float sum = 0f;
+                for (int jj = 0; jj < kSize; jj++) {
+                    int jk = j - half + jj;
+                    if (jk < 0) jk = 0; else if (jk >= W) jk = W - 1;
+                    sum += s[sRow + jk * C + c] * rowF[jj];
+                }
+                band[bRow + j * C + c] = sum;
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+//how distributed mode puts pixels on the wire between ranks (--wire, --rle)
+//"samples" (the default): the bands are scattered and gathered as image samples (1 byte, or 2
+//big-endian bytes above depth 255) instead of 4 byte floats. The input samples decode to the same
+//floats on every rank and the output is quantized exactly as the file writer does it, so the
+//result doesn't change. Halo rows are intermediate values (they can be negative or above 1) and
+//stay floats.
+//"8" / "16": the halo rows too are quantized, over each message's own min..max (lossy, at most
+//half a step of (max - min) / 255 or / 65535 off per value)
+//"float": floats everywhere, as before
+//--rle codes every sample and quantized halo message as byte deltas against the previous pixel
+//(same channel) and PackBits runs; that only pays off on images with flat areas
+class WireFormat {
+
+    final boolean floats; // --wire=float
+    final int haloBits;   // 0: halo rows are sent as floats
+    final boolean rle;
+
+    WireFormat(boolean floats, int haloBits, boolean rle) {
+        this.floats = floats;
+        this.haloBits = haloBits;
+        this.rle = rle && !floats;
+    }
+
+    static WireFormat parse(String wire, boolean rle) {
+        switch (wire) {
+            case "float": return new WireFormat(true, 0, false);
+            case "samples": return new WireFormat(false, 0, rle);
+            case "8": return new WireFormat(false, 8, rle);
+            case "16": return new WireFormat(false, 16, rle);
+            default: throw new IllegalArgumentException("Unknown --wire=" + wire + " (samples, 8, 16 or float)");
+        }
+    }
+
+    // room for a message made from n bytes (PackBits adds at most one byte per 128)
+    int maxMessage(int n) {
+        return rle ? n + (n + 127) / 128 : n;
+    }
+
+    // n bytes of src to a message at dst[dstOff], returns its length; stride is the number of bytes
+    // per pixel (the delta is taken against the byte one pixel back)
+    int code(byte[] src, int off, int n, int stride, byte[] dst, int dstOff) {
+        if (!rle) {
+            System.arraycopy(src, off, dst, dstOff, n);
+            return n;
+        }
+        byte[] delta = BufferPool.bytesAtLeast(n);
+        for (int i = 0; i < n; i++) delta[i] = (byte) (src[off + i] - ((i < stride) ? 0 : src[off + i - stride]));
+        int len = packBits(delta, n, dst, dstOff);
+        BufferPool.release(delta);
+        return len;
+    }
+
+    // the opposite of code: n bytes to dst[dstOff]
+    void decode(byte[] src, int srcOff, byte[] dst, int dstOff, int n, int stride) {
+        if (!rle) {
+            System.arraycopy(src, srcOff, dst, dstOff, n);
+            return;
+        }
+        unpackBits(src, srcOff, dst, dstOff, n);
+        for (int i = stride; i < n; i++) dst[dstOff + i] += dst[dstOff + i - stride];
+    }
+
+    // --- halo rows (only with haloBits > 0) ---
+
+    // room for a halo message of n values
+    int maxHalo(int n) {
+        return maxMessage(8 + n * (haloBits / 8));
+    }
+
+    // n floats of src (channels per pixel) to a message: min and max, then the values quantized
+    // over min..max; returns its length
+    int codeHalo(float[] src, int off, int n, int channels, byte[] dst) {
+        float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+        for (int i = off; i < off + n; i++) {
+            min = Math.min(min, src[i]);
+            max = Math.max(max, src[i]);
+        }
+        int levels = (1 << haloBits) - 1, bps = haloBits / 8;
+        float step = (max > min) ? levels / (max - min) : 0;
+        byte[] q = BufferPool.bytesAtLeast(8 + n * bps);
+        putInt(q, 0, Float.floatToIntBits(min));
+        putInt(q, 4, Float.floatToIntBits(max));
+        for (int i = 0; i < n; i++) {
+            int v = Math.round((src[off + i] - min) * step);
+            if (bps == 1) {
+                q[8 + i] = (byte) v;
+            } else {
+                q[8 + 2 * i] = (byte) (v >> 8);
+                q[8 + 2 * i + 1] = (byte) v;
+            }
+        }
+        // the two floats are kept out of the delta coding
+        System.arraycopy(q, 0, dst, 0, 8);
+        int len = 8 + code(q, 8, n * bps, channels * bps, dst, 8);
+        BufferPool.release(q);
+        return len;
+    }
+
+    // the opposite of codeHalo: n floats to dst[off]
+    void decodeHalo(byte[] src, float[] dst, int off, int n, int channels) {
+        int levels = (1 << haloBits) - 1, bps = haloBits / 8;
+        float min = Float.intBitsToFloat(getInt(src, 0)), max = Float.intBitsToFloat(getInt(src, 4));
+        float step = (max - min) / levels;
+        byte[] q = BufferPool.bytesAtLeast(n * bps);
+        decode(src, 8, q, 0, n * bps, channels * bps);
+        for (int i = 0; i < n; i++) {
+            int v = (bps == 1) ? q[i] & 0xFF : ((q[2 * i] & 0xFF) << 8) | (q[2 * i + 1] & 0xFF);
+            dst[off + i] = min + v * step;
+        }
+        BufferPool.release(q);
+    }
+
+    // PackBits: a header byte h >= 0 is followed by h + 1 literal bytes, h < 0 by one byte that
+    // repeats 1 - h times
+    private static int packBits(byte[] src, int n, byte[] dst, int dstOff) {
+        int o = dstOff, i = 0;
+        while (i < n) {
+            int run = 1;
+            while (i + run < n && run < 128 && src[i + run] == src[i]) run++;
+            if (run >= 3) {
+                dst[o++] = (byte) (1 - run);
+                dst[o++] = src[i];
+                i += run;
+                continue;
+            }
+            // literals up to the next run of 3
+            int start = i;
+            while (i < n && i - start < 128
+                    && !(i + 2 < n && src[i] == src[i + 1] && src[i] == src[i + 2])) i++;
+            dst[o++] = (byte) (i - start - 1);
+            System.arraycopy(src, start, dst, o, i - start);
+            o += i - start;
+        }
+        return o - dstOff;
+    }
+
+    private static void unpackBits(byte[] src, int srcOff, byte[] dst, int dstOff, int n) {
+        int p = srcOff, o = dstOff, end = dstOff + n;
+        while (o < end) {
+            int h = src[p++];
+            if (h >= 0) {
+                System.arraycopy(src, p, dst, o, h + 1);
+                p += h + 1;
+                o += h + 1;
+            } else {
+                byte b = src[p++];
+                for (int k = 0; k < 1 - h; k++) dst[o++] = b;
+            }
+        }
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >> 24);
+        b[off + 1] = (byte) (v >> 16);
+        b[off + 2] = (byte) (v >> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+}
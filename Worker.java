@@ -1,54 +1,116 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 //Concurrent program
-//Creating   a thread called worker  by Inheritance used in OOP
+//a Worker is a range of 2D tiles of the output; it splits itself in halves until it is one tile,
+//so idle threads of the pool steal the other halves (dynamic load balancing)
 // this class runs the Program in Parallel mode
-public class Worker extends Thread {
+public class Worker extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    // long-lived pools, shared by every op and every file of the run: one per thread count, as a
+    // caller may still be using the pool of another count (the preview next to a run, two engines)
+    private static final Map<Integer, ForkJoinPool> POOLS = new ConcurrentHashMap<>();
+
    // variables of the Worker Class
-    int id;
-    int numThreads;
-    int kernelSize;
-    float[] kernel;
-    PpmImage image;
-    PpmImage output;
+    FusedChain chain;
+    Image image;
+    float[] output;
+    int tilesAcross;
+    int tilesDown;
+    // tiles [from, to), numbered row by row
+    int from;
+    int to;
+    // the engine job this run belongs to (may be null): checked before every tile, told after it
+    Engine.Job<?> job;
+
 // Constructor Method of worker class
-    Worker(int id, int numThreads, PpmImage input, PpmImage output, int kernelSize, float[] kernel) {
-        this.id = id;
-        this.numThreads = numThreads;
-        this.kernelSize = kernelSize;
-        this.kernel = kernel;
+    Worker(FusedChain chain, Image input, float[] output, int from, int to) {
+        this.chain = chain;
         this.image = input;
         this.output = output;
+        this.tilesAcross = (input.width + FusedChain.TILE_COLS - 1) / FusedChain.TILE_COLS;
+        this.tilesDown = (input.height + FusedChain.TILE_ROWS - 1) / FusedChain.TILE_ROWS;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from > 1) {
+            int mid = (from + to) >>> 1;
+            Worker a = new Worker(chain, image, output, from, mid), b = new Worker(chain, image, output, mid, to);
+            a.job = job;
+            b.job = job;
+            invokeAll(a, b);
+            return;
+        }
+        runTile(from);
+    }
+
+    private void runTile(int tile) {
+        if (job != null && job.cancelled) return;
+        int r0 = (tile / tilesAcross) * FusedChain.TILE_ROWS;
+        int c0 = (tile % tilesAcross) * FusedChain.TILE_COLS;
+        chain.runTile(image, output, r0, Math.min(r0 + FusedChain.TILE_ROWS, image.height),
+                c0, Math.min(c0 + FusedChain.TILE_COLS, image.width));
+        if (job != null) job.tileDone(tilesAcross * tilesDown);
     }
-//Worker class override the run() method in the Class Thread
-    public void run() {
-
-        int ik, jk, kernelIndex, dataIndex;
-        float sum = 0, currentPixel;
-        // widthOffset to handle the right slice per thread
-        int widthOffset = (this.image.width / numThreads);
-        // sliceWidth to handle the width slice
-        int sliceWidth = (this.id == numThreads - 1) ? (this.image.width / numThreads) + (this.image.width % numThreads)
-                : (this.image.width / numThreads);
-
-        for (int i = 0; i < this.image.height; i++) {
-            for (int j = 0; j < sliceWidth; j++) {
-                for (int c = 0; c < this.image.channels; c++) {
-                    for (int ii = 0; ii < this.kernelSize; ii++) {
-                        ik = ((i - this.kernelSize / 2 + ii) < 0) ? 0 : Math.min((i - this.kernelSize / 2 + ii), this.image.height - 1);
-                        for (int jj = 0; jj < this.kernelSize; jj++) {
-                            jk = ((j - this.kernelSize / 2 + jj + widthOffset * this.id) < 0) ? 0 :
-                                    ((j - this.kernelSize / 2 + jj + widthOffset * this.id) > this.image.width - 1) ?
-                                            this.image.width - 1 - widthOffset * this.id : j - this.kernelSize / 2 + jj;
-                            dataIndex = (ik * this.image.width + jk + widthOffset * this.id) * this.image.channels + c;
-                            currentPixel = this.image.data[dataIndex];
-                            kernelIndex = (this.kernelSize - 1 - ii) * this.kernelSize + (this.kernelSize - 1 - jj);
-                            sum += (currentPixel * this.kernel[kernelIndex]);
-                        }
-                    }
-                    output.data[(i * this.image.width + j + widthOffset * this.id) * this.image.channels + c] = sum;
-                    sum = 0;
-                }
-            }
+
+    // the shared pool of numThreads threads, created on first use. Pools are never shut down, the
+    // threads of one that isn't used any more end by themselves after a minute idle
+    static ForkJoinPool pool(int numThreads) {
+        return POOLS.computeIfAbsent(numThreads, ForkJoinPool::new);
+    }
+
+    // runs the chain over the whole image, on the pool or in the calling thread (sequential mode)
+    static void runChain(Image input, float[] output, FusedChain chain, int numThreads) {
+        runChain(input, output, chain, numThreads, null);
+    }
+
+    // same for an engine job: the remaining tiles are skipped once the job is cancelled
+    static void runChain(Image input, float[] output, FusedChain chain, int numThreads, Engine.Job<?> job) {
+        if (numThreads == 1 && job == null) {
+            chain.run(input, output, 0, input.height, 0, input.width);
+            return;
+        }
+        Worker all = new Worker(chain, input, output, 0, 0);
+        all.to = all.tilesAcross * all.tilesDown;
+        all.job = job;
+        if (numThreads == 1) {
+            for (int t = 0; t < all.to; t++) all.runTile(t);
+        } else if (all.to > 0) {
+            pool(numThreads).invoke(all);
+        }
+    }
+
+    // work on rows [r0, r1) (or columns, see forEachBand) of an image
+    interface RowTask {
+        void run(int r0, int r1);
+    }
+
+    // splits the rows into bands of FusedChain.TILE_ROWS and runs them on the shared pool
+    static void forEachRowBand(int height, int numThreads, RowTask task) {
+        forEachBand(height, FusedChain.TILE_ROWS, numThreads, task);
+    }
+
+    // splits [0, length) into bands of bandSize and runs them on the shared pool
+    static void forEachBand(int length, int bandSize, int numThreads, RowTask task) {
+        if (numThreads == 1 || length <= bandSize) {
+            task.run(0, length);
+            return;
+        }
+        List<ForkJoinTask<?>> bands = new ArrayList<>();
+        for (int r = 0; r < length; r += bandSize) {
+            int r0 = r, r1 = Math.min(r + bandSize, length);
+            bands.add(ForkJoinTask.adapt(() -> task.run(r0, r1)));
         }
+        pool(numThreads).invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(bands)));
     }
 }
@@ -0,0 +1,232 @@
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.DoubleSupplier;
+
+//repeatable timings of the building blocks, on synthetic images made in memory
+//every case is run a few times untimed (so the JIT has compiled it), then measured several times;
+//mean, standard deviation, best time and throughput are printed, one line per case.
+//usage: java Benchmarks [--bench=column,tiles,rows,ops,import,export,decode,encode,generic,direct,vector]
+//       [--sizes=512x512,2048x2048] [--channels=1,3] [--kernels=blur,sharpen,edge,blur9] [--threads=1,4]
+//       [--warmup=5] [--iterations=10] [--csv]
+//it is built with the JMH benchmarks (mvn -P jmh package, see pom.xml), which time the same cases in
+//forked JVMs: java -cp target/benchmarks.jar Benchmarks ... Without JMH, run each configuration in its
+//own JVM (e.g. --threads=1, then --threads=4) for the cleanest numbers
+public class Benchmarks {
+
+    private static int warmup = 5, iterations = 10;
+    private static boolean csv;
+    // results are folded into this, so the JIT can't drop the work as unused
+    private static double sink;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String a : args) {
+            if (!a.startsWith("--")) continue;
+            int eq = a.indexOf('=');
+            options.put((eq < 0) ? a.substring(2) : a.substring(2, eq), (eq < 0) ? "" : a.substring(eq + 1));
+        }
+        List<String> benches = list(options.getOrDefault("bench", "column,tiles,rows,ops,import,export,decode,encode"));
+        List<String> sizes = list(options.getOrDefault("sizes", "512x512,2048x2048"));
+        List<String> channels = list(options.getOrDefault("channels", "1,3"));
+        List<String> kernels = list(options.getOrDefault("kernels", "blur,sharpen,edge,blur9"));
+        List<String> threads = list(options.getOrDefault("threads",
+                "1," + Runtime.getRuntime().availableProcessors()));
+        warmup = Integer.parseInt(options.getOrDefault("warmup", "5"));
+        iterations = Integer.parseInt(options.getOrDefault("iterations", "10"));
+        csv = options.containsKey("csv");
+
+        if (csv) System.out.println("bench,size,channels,kernel,threads,mean_ms,sd_ms,best_ms,mpix_s");
+        File tmp = File.createTempFile("bench", ".ppm");
+        tmp.deleteOnExit();
+        try {
+            for (String size : sizes) {
+                int x = size.indexOf('x');
+                int W = Integer.parseInt(size.substring(0, x)), H = Integer.parseInt(size.substring(x + 1));
+                for (String ch : channels) {
+                    PpmImage in = synthetic(W, H, Integer.parseInt(ch));
+                    for (String bench : benches) run(bench, in, size, kernels, threads, tmp);
+                }
+            }
+        } finally {
+            tmp.delete();
+        }
+        if (sink == 42.4242) System.out.println(); // keeps sink alive
+    }
+
+    private static void run(String bench, PpmImage in, String size, List<String> kernels, List<String> threads,
+                            File tmp) {
+        for (String k : variants(bench, kernels)) {
+            for (String t : threads) {
+                int n = Integer.parseInt(t);
+                measure(bench, in, size, k, n, task(bench, in, k, n, tmp.getAbsolutePath()));
+            }
+        }
+    }
+
+    // what the "kernel" column of a benchmark goes over: kernels, ops (mirror too), depths, or nothing
+    static List<String> variants(String bench, List<String> kernels) {
+        List<String> l = new ArrayList<>();
+        switch (bench) {
+            case "column":
+            case "tiles":
+            case "rows":
+            case "generic":
+            case "direct":
+            case "vector":
+                l.addAll(kernels);
+                break;
+            case "ops":
+                l.addAll(kernels);
+                l.add("mirror");
+                break;
+            case "decode":
+            case "encode":
+                l.add("255");
+                l.add("65535");
+                break;
+            case "import":
+            case "export":
+                l.add("-");
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown benchmark: " + bench);
+        }
+        return l;
+    }
+
+    // one case, ready to be timed (kernel is a kernel or op name, or the depth for decode/encode); it
+    // returns a sample of its result, which the caller keeps so the JIT can't drop the work as unused.
+    // path is a scratch file for import and export
+    static DoubleSupplier task(String bench, PpmImage in, String kernel, int n, String path) {
+        float[] out = new float[in.data.length];
+        int mid = out.length / 2;
+        switch (bench) {
+            case "column": { // column bands of one kernel, one band per task on the shared pool
+                Kernel k = Universal.getKernel(kernel);
+                return () -> {
+                    Worker.forEachBand(in.width, FusedChain.TILE_COLS, n, (c0, c1) -> Convolution.apply(in, out, k, 0, in.height, c0, c1));
+                    return out[mid];
+                };
+            }
+            case "tiles": { // the Worker path: tiles of one kernel on the shared pool
+                FusedChain chain = FusedChain.parse(new String[]{kernel});
+                return () -> {
+                    Worker.runChain(in, out, chain, n);
+                    return out[mid];
+                };
+            }
+            case "rows": { // the MpjImageProcessor.applyKernelRows path: one row band per thread
+                Kernel k = Universal.getKernel(kernel);
+                return () -> {
+                    Worker.forEachRowBand(in.height, n, (r0, r1) -> Convolution.apply(in, out, k, r0, r1, 0, in.width));
+                    return out[mid];
+                };
+            }
+            case "generic": // the convolution loops themselves, on row bands: clamped everywhere,
+            case "direct": // the unrolled 3x3/5x5 interior with clamped borders,
+            case "vector": { // the SIMD backend (needs --add-modules jdk.incubator.vector)
+                if (bench.equals("vector") && !Convolution.vectorAvailable())
+                    throw new IllegalArgumentException("vector needs --add-modules jdk.incubator.vector");
+                Kernel k = Universal.getKernel(kernel);
+                Convolution.Window src = new Convolution.Window(in.data, 0, 0, in.width);
+                Convolution.Window dst = new Convolution.Window(out, 0, 0, in.width);
+                int W = in.width, H = in.height, C = in.channels;
+                return () -> {
+                    Worker.forEachRowBand(H, n, (r0, r1) -> {
+                        if (bench.equals("generic")) Convolution.directClamped(src, dst, W, H, C, k, r0, r1, 0, W);
+                        else if (bench.equals("direct")) Convolution.direct(src, dst, W, H, C, k, r0, r1, 0, W);
+                        else VectorConvolution.direct(src, dst, W, H, C, k, r0, r1, 0, W);
+                    });
+                    return out[mid];
+                };
+            }
+            case "ops": { // every op through ImageProcessor.process, mirror included
+                FusedChain chain = OpPlanner.plan(new String[]{kernel}, false).chain();
+                return () -> {
+                    PpmImage result = ImageProcessor.process(in, chain, n);
+                    float v = result.data[mid];
+                    BufferPool.recycle(result);
+                    return v;
+                };
+            }
+            case "export":
+                return () -> in.ppmExport(path, n) ? 1 : 0;
+            case "import":
+                in.ppmExport(path);
+                return () -> {
+                    PpmImage img = new PpmImage();
+                    img.ppmImport(path, n);
+                    float v = img.data[mid];
+                    BufferPool.recycle(img);
+                    return v;
+                };
+            case "decode": // samples to floats only (import without the file), 8 and 16 bit
+            case "encode": { // floats to samples only (export without the file)
+                int depth = Integer.parseInt(kernel), count = in.data.length;
+                byte[] samples = new byte[count * ((depth > 255) ? 2 : 1)];
+                PpmCodec.encode(in.data, 0, count, samples, 0, depth);
+                ByteBuffer buf = ByteBuffer.wrap(samples);
+                if (bench.equals("decode")) {
+                    return () -> {
+                        PpmCodec.decode(buf, 0, out, 0, count, depth, n);
+                        return out[mid];
+                    };
+                }
+                return () -> {
+                    PpmCodec.encode(in.data, 0, count, samples, 0, depth, n);
+                    return samples[samples.length / 2];
+                };
+            }
+            default:
+                throw new IllegalArgumentException("Unknown benchmark: " + bench);
+        }
+    }
+
+    // a case on a synthetic width x height image, for harnesses outside this package (the JMH
+    // benchmarks in src/jmh, see pom.xml); path as in task
+    public static DoubleSupplier prepare(String bench, int width, int height, int channels, String kernel,
+                                         int threads, String path) {
+        return task(bench, synthetic(width, height, channels), kernel, threads, path);
+    }
+
+    private static void measure(String bench, Image in, String size, String kernel, int threads, DoubleSupplier c) {
+        for (int i = 0; i < warmup; i++) sink += c.getAsDouble();
+        double[] ms = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long t0 = System.nanoTime();
+            sink += c.getAsDouble();
+            ms[i] = (System.nanoTime() - t0) / 1e6;
+        }
+        double mean = 0, best = Double.MAX_VALUE;
+        for (double m : ms) {
+            mean += m / ms.length;
+            best = Math.min(best, m);
+        }
+        double var = 0;
+        for (double m : ms) var += (m - mean) * (m - mean) / Math.max(1, ms.length - 1);
+        double mpix = (double) in.width * in.height / 1e6 / (mean / 1000);
+        String fmt = csv ? "%s,%s,%d,%s,%d,%.3f,%.3f,%.3f,%.1f%n"
+                : "%-7s %-10s ch=%d %-8s threads=%-3d %9.3f ms +- %7.3f  (best %9.3f)  %8.1f MP/s%n";
+        System.out.printf(Locale.ROOT, fmt, bench, size, in.channels, kernel, threads, mean, Math.sqrt(var), best, mpix);
+    }
+
+    // random samples, the same image every run
+    static PpmImage synthetic(int width, int height, int channels) {
+        Random rnd = new Random(42);
+        PpmImage img = new PpmImage(width, height, channels, 255);
+        for (int i = 0; i < img.data.length; i++) img.data[i] = rnd.nextInt(256) / 255f;
+        return img;
+    }
+
+    private static List<String> list(String s) {
+        List<String> l = new ArrayList<>();
+        for (String p : s.split(",")) if (!p.trim().isEmpty()) l.add(p.trim());
+        return l;
+    }
+}
@@ -0,0 +1,34 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.function.DoubleSupplier;
+
+//the image code is in the default package, which a named package (and JMH wants one) can't import,
+//so the cases are looked up once by name: Benchmarks.prepare builds them, JMH only times them
+final class Cases {
+
+    private Cases() {
+    }
+
+    // a case of Benchmarks (see Benchmarks.task) on a synthetic image; scratch is a temporary file
+    // for import and export
+    static DoubleSupplier prepare(String bench, String size, int channels, String kernel, int threads, File scratch) {
+        int x = size.indexOf('x');
+        int width = Integer.parseInt(size.substring(0, x)), height = Integer.parseInt(size.substring(x + 1));
+        try {
+            Method m = Class.forName("Benchmarks").getMethod("prepare", String.class, int.class, int.class,
+                    int.class, String.class, int.class, String.class);
+            return (DoubleSupplier) m.invoke(null, bench, width, height, channels, kernel, threads, scratch.getAbsolutePath());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Benchmarks.prepare not found, is the project on the class path?", e);
+        }
+    }
+
+    static File scratch() throws IOException {
+        File f = File.createTempFile("bench", ".ppm");
+        f.deleteOnExit();
+        return f;
+    }
+}
@@ -0,0 +1,69 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+//the convolution loops on row bands, without the tiling around them:
+//  generic = the clamped loop everywhere
+//  direct  = the unrolled 3x3/5x5 interior (other sizes fall back to the generic loop)
+//  vector  = the SIMD backend; the forks get --add-modules jdk.incubator.vector for it
+//e.g. java -jar target/benchmarks.jar ConvolutionBenchmarks -p kernel=sharpen,blur5 -p threads=1
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class ConvolutionBenchmarks {
+
+    @Param({"generic", "direct", "vector"})
+    String bench;
+
+    @Param({"2048x2048"})
+    String size;
+
+    @Param({"3"})
+    int channels;
+
+    @Param({"sharpen", "edge", "blur5"})
+    String kernel;
+
+    @Param({"1"})
+    int threads;
+
+    private DoubleSupplier task;
+    private File scratch;
+
+    @Setup
+    public void setup() throws IOException {
+        scratch = Cases.scratch();
+        task = Cases.prepare(bench, size, channels, kernel, threads, scratch);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        scratch.delete();
+    }
+
+    @Benchmark
+    public void run(Blackhole bh) {
+        bh.consume(task.getAsDouble());
+    }
+}
@@ -0,0 +1,63 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+//PpmImage.ppmImport and ppmExport of an 8-bit file, through a temporary file
+//e.g. java -jar target/benchmarks.jar FileBenchmarks -p size=2048x2048
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class FileBenchmarks {
+
+    @Param({"import", "export"})
+    String bench;
+
+    @Param({"512x512", "2048x2048"})
+    String size;
+
+    @Param({"1", "3"})
+    int channels;
+
+    @Param({"1", "4"})
+    int threads;
+
+    private DoubleSupplier task;
+    private File scratch;
+
+    @Setup
+    public void setup() throws IOException {
+        scratch = Cases.scratch();
+        task = Cases.prepare(bench, size, channels, "-", threads, scratch);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        scratch.delete();
+    }
+
+    @Benchmark
+    public void run(Blackhole bh) {
+        bh.consume(task.getAsDouble());
+    }
+}